@@ -5,6 +5,7 @@ import org.spongepowered.api.event.Event;
 import org.spongepowered.api.item.inventory.Inventory;
 import org.spongepowered.api.util.annotation.NonnullByDefault;
 
+import java.util.Set;
 import java.util.function.Consumer;
 
 /**
@@ -39,6 +40,22 @@ public interface VirtualChest
         return i -> {};
     }
 
+    /**
+     * Create a {@link Consumer} which will be invoked to execute the update logic when some slots
+     * are invalidated. The default implementation falls back to {@link #getUpdaterFor(String,
+     * Player)}, which updates the whole chest GUI.
+     *
+     * @param identifier  the registered id
+     * @param player      the player
+     * @param slotIndices the indices of the invalidated slots
+     * @return a {@link Consumer} which will be passed the opening inventory of the player
+     * @see VirtualChestService#invalidate
+     */
+    default Consumer<Inventory> getUpdaterFor(String identifier, Player player, Set<Integer> slotIndices)
+    {
+        return this.getUpdaterFor(identifier, player);
+    }
+
     /**
      * Representation of a event, fired while VirtualChest is being loaded at the stage the server
      * is starting, or fired while a reload action (for example, <code>/virtualchest reload</code>
@@ -4,8 +4,13 @@ import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.service.ServiceManager;
 import org.spongepowered.api.util.annotation.NonnullByDefault;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Representation of a service provider for the chest GUIs. The implementation can be retrieved by
@@ -50,6 +55,30 @@ public interface VirtualChestService
      */
     boolean open(String identifier, Player player);
 
+    /**
+     * Open the chest GUI for many players. The players are queued and the chest GUIs are opened in
+     * batches across ticks, so that opening a chest GUI for all the players on the server will not
+     * block a single tick for too long.
+     * <p>
+     * Each of the futures will be completed on the main thread with the value which would be
+     * returned by {@link #open} for the corresponding player. A player which occurs more than once
+     * is only opened once. The default implementation invokes {@link #open} for each player at once
+     * and returns completed futures.
+     *
+     * @param identifier the id for the chest GUI to be opened
+     * @param players    the players
+     * @return an unmodifiable map from each of the players to the result of opening
+     */
+    default Map<Player, CompletableFuture<Boolean>> openAll(String identifier, Collection<Player> players)
+    {
+        Map<Player, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        for (Player player : players)
+        {
+            futures.computeIfAbsent(player, p -> CompletableFuture.completedFuture(this.open(identifier, p)));
+        }
+        return Collections.unmodifiableMap(futures);
+    }
+
     /**
      * Close the chest GUI for player.
      *
@@ -58,4 +87,47 @@ public interface VirtualChestService
      * @return true if the chest GUI is available and finally mark to be closed, false otherwise
      */
     boolean close(String identifier, Player player);
+
+    /**
+     * Mark a slot of the chest GUI opened by the player as invalidated. The invalidated slots will
+     * be updated together at the next tick, so it is cheap to invalidate the same slot many times.
+     * The default implementation does nothing and returns false.
+     *
+     * @param identifier the id for the chest GUI
+     * @param player     the player
+     * @param slotIndex  the index of the slot
+     * @return true if the chest GUI is marked as opened by the player, false otherwise
+     * @see VirtualChest#getUpdaterFor(String, Player, Set)
+     */
+    default boolean invalidate(String identifier, Player player, int slotIndex)
+    {
+        return false;
+    }
+
+    /**
+     * Mark all the slots depending on a placeholder (for example, <code>economy_balance</code>
+     * for <code>%economy_balance%</code>) of the chest GUI opened by the player as invalidated. The
+     * whole chest GUI will be invalidated if the slots depending on the placeholder are unknown.
+     * The default implementation does nothing and returns false.
+     *
+     * @param placeholderKey the placeholder key without percent signs
+     * @param player         the player
+     * @return true if there is a chest GUI marked as opened by the player, false otherwise
+     */
+    default boolean invalidatePlaceholder(String placeholderKey, Player player)
+    {
+        return false;
+    }
+
+    /**
+     * Mark all the slots depending on a placeholder of the chest GUIs opened by all the players as
+     * invalidated. It is equivalent to invoking {@link #invalidatePlaceholder(String, Player)} for
+     * each player. The default implementation does nothing.
+     *
+     * @param placeholderKey the placeholder key without percent signs
+     */
+    default void invalidatePlaceholder(String placeholderKey)
+    {
+        // do nothing
+    }
 }
@@ -0,0 +1,143 @@
+package com.github.ustc_zzzz.virtualchest.action;
+
+import com.github.ustc_zzzz.virtualchest.api.action.VirtualChestActionExecutor;
+import com.github.ustc_zzzz.virtualchest.api.action.VirtualChestActionExecutor.Context;
+import com.google.common.collect.ClassToInstanceMap;
+import com.google.common.collect.ImmutableClassToInstanceMap;
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.*;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.util.Tuple;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Compares {@link VirtualChestActionLoop} with the chained futures used before, on commands whose
+ * executors complete immediately (such as {@code tell} and {@code cost}). The chained futures call
+ * themselves recursively for each command, so the count of commands is kept small. Run it with
+ * {@code ./gradlew jmh -Pjmh.args="VirtualChestActionLoopBenchmark -prof gc"} to compare the
+ * allocation rates.
+ *
+ * @author ustc_zzzz
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualChestActionLoopBenchmark
+{
+    private static final ClassToInstanceMap<Context> CONTEXT = ImmutableClassToInstanceMap.of();
+
+    @Param({"1", "8", "64"})
+    public int commandCount;
+
+    @Param({"1", "2"})
+    public int executorCount;
+
+    private List<Tuple<VirtualChestActionPipeline.Step, String>> commands;
+
+    @Setup
+    public void setup()
+    {
+        VirtualChestActionExecutor executor = (parent, command, context) ->
+                CompletableFuture.completedFuture(CommandResult.success());
+
+        ImmutableList.Builder<VirtualChestActionExecutor> executorsBuilder = ImmutableList.builder();
+        for (int i = 0; i < this.executorCount; ++i)
+        {
+            executorsBuilder.add(executor);
+        }
+        List<VirtualChestActionExecutor> executors = executorsBuilder.build();
+
+        ImmutableList.Builder<Tuple<VirtualChestActionPipeline.Step, String>> commandsBuilder = ImmutableList.builder();
+        for (int i = 0; i < this.commandCount; ++i)
+        {
+            String suffix = "Wheats are sold successfully. You have 1024.0 now.";
+            commandsBuilder.add(Tuple.of(new VirtualChestActionPipeline.Step("tell", suffix, null, executors), suffix));
+        }
+        this.commands = commandsBuilder.build();
+    }
+
+    @Benchmark
+    public CommandResult chained()
+    {
+        ChainedCallback callback = new ChainedCallback(new LinkedList<>(this.commands));
+        callback.accept(CommandResult.success());
+        return callback.future.join();
+    }
+
+    @Benchmark
+    public CommandResult loop()
+    {
+        LoopCallback callback = new LoopCallback(new LinkedList<>(this.commands));
+        callback.accept(CommandResult.success());
+        return callback.future.join();
+    }
+
+    private static class LoopCallback extends VirtualChestActionLoop
+    {
+        private final CompletableFuture<CommandResult> future = new CompletableFuture<>();
+
+        private LoopCallback(Queue<Tuple<VirtualChestActionPipeline.Step, String>> commandList)
+        {
+            super(commandList, CONTEXT);
+        }
+
+        @Override
+        protected void onCommand(VirtualChestActionPipeline.Step step, String suffix)
+        {
+            // nothing to be recorded
+        }
+
+        @Override
+        protected void onComplete(CommandResult commandResult)
+        {
+            this.future.complete(commandResult);
+        }
+
+        @Override
+        protected void onError(Throwable throwable)
+        {
+            this.future.completeExceptionally(throwable);
+        }
+    }
+
+    private static class ChainedCallback implements Consumer<CommandResult>
+    {
+        private final Queue<Tuple<VirtualChestActionPipeline.Step, String>> commandList;
+        private final CompletableFuture<CommandResult> future = new CompletableFuture<>();
+
+        private ChainedCallback(Queue<Tuple<VirtualChestActionPipeline.Step, String>> commandList)
+        {
+            this.commandList = commandList;
+        }
+
+        @Override
+        public void accept(CommandResult commandResult)
+        {
+            Tuple<VirtualChestActionPipeline.Step, String> t = this.commandList.poll();
+            if (Objects.isNull(t))
+            {
+                this.future.complete(commandResult);
+            }
+            else
+            {
+                String suffix = t.getSecond();
+                CompletableFuture<CommandResult> future = CompletableFuture.completedFuture(commandResult);
+                for (VirtualChestActionExecutor action : t.getFirst().getExecutors())
+                {
+                    future = future.thenCompose(parent -> action.execute(parent, suffix, CONTEXT));
+                }
+                future.thenAccept(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.ustc_zzzz.virtualchest.placeholder;
+
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link VirtualChestPlaceholderScanner} with the regular expression used before, on the
+ * strings in 'examples/example.conf'. Run it with {@code ./gradlew jmh}, and add
+ * {@code -Pjmh.args="-prof gc"} to compare the allocation rates.
+ *
+ * @author ustc_zzzz
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualChestPlaceholderScannerBenchmark
+{
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("[%]([^%\\s]+)[%]", Pattern.CASE_INSENSITIVE);
+
+    private static final String[] TEXTS = {
+            "tell: Wheats are sold successfully. You have %economy_bal_format% now.",
+            "tell: You have %economy_bal_format% now. Now start selling wheats to the server.",
+            "%player_uuid%",
+            "%economy_balance% >= 640",
+            "console: give %player_name% minecraft:wheat 64; console: give %player_name% minecraft:wheat 64",
+            "&lHello! %player_name%",
+            "&eYou are now at &l%player_world%",
+            "&eThe server now has &l%server_online%&r &eplayer(s), and the capacity is &l%server_max_players%",
+            "&eIt is &l%time%&r &enow",
+            "cost: 7; console: virtualchest open example2 %player_name%",
+            "tick % 20 < 10",
+            "minecraft:stained_glass_pane"
+    };
+
+    private final VirtualChestPlaceholderScanner scanner = new VirtualChestPlaceholderScanner();
+
+    @Benchmark
+    public void regexKeys(Blackhole blackhole)
+    {
+        for (String text : TEXTS)
+        {
+            Matcher matcher = PLACEHOLDER_PATTERN.matcher(text);
+            while (matcher.find())
+            {
+                blackhole.consume(matcher.start(1));
+                blackhole.consume(matcher.end(1));
+            }
+        }
+    }
+
+    @Benchmark
+    public void scannerKeys(Blackhole blackhole)
+    {
+        for (String text : TEXTS)
+        {
+            VirtualChestPlaceholderScanner scanner = this.scanner.reset(text);
+            while (scanner.find())
+            {
+                blackhole.consume(scanner.keyStart());
+                blackhole.consume(scanner.keyEnd());
+            }
+        }
+    }
+
+    @Benchmark
+    public void regexJavaScriptLiteral(Blackhole blackhole)
+    {
+        for (String text : TEXTS)
+        {
+            StringBuilder builder = new StringBuilder();
+            Matcher matcher = PLACEHOLDER_PATTERN.matcher(text);
+            int lastIndex = 0;
+            while (matcher.find())
+            {
+                String matched = new JsonPrimitive(text.substring(matcher.start() + 1, matcher.end() - 1)).toString();
+                builder.append(text, lastIndex, matcher.start()).append("papi");
+                builder.append("(").append(matched).append(")");
+                lastIndex = matcher.end();
+            }
+            if (lastIndex < text.length())
+            {
+                builder.append(text.substring(lastIndex));
+            }
+            blackhole.consume(builder.toString());
+        }
+    }
+
+    @Benchmark
+    public void scannerJavaScriptLiteral(Blackhole blackhole)
+    {
+        for (String text : TEXTS)
+        {
+            blackhole.consume(VirtualChestPlaceholderManager.toJavaScriptLiteral(text, "papi"));
+        }
+    }
+}
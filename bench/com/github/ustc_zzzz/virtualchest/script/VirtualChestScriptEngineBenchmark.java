@@ -0,0 +1,108 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.*;
+import org.spongepowered.api.entity.living.player.Player;
+
+import javax.script.*;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Compares the engines of requirement scripts on the typical requirements in 'examples/example.conf'
+ * (whose placeholders have been rewritten to invocations of {@code papi}). The engine 'javascript'
+ * stands for the compiled scripts of nashorn without being evaluated in plain java. Run it with
+ * {@code ./gradlew jmh -Pjmh.args="VirtualChestScriptEngineBenchmark"}, and add {@code -prof gc} to
+ * the arguments to compare the allocation rates.
+ *
+ * @author ustc_zzzz
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualChestScriptEngineBenchmark
+{
+    private static final Map<String, String> SCRIPTS = ImmutableMap.of(
+            "balance", "papi(\"economy_balance\") >= 640",
+            "tick", "tick % 20 < 10",
+            "permission", "player.hasPermission(\"virtualchest.example\")",
+            "compound", "papi(\"player_world\") == \"world\" && papi(\"server_online\") > 1 || tick > 100");
+
+    private static final Map<String, Object> PLACEHOLDERS = ImmutableMap.of(
+            "economy_balance", "1024.0", "player_world", "world", "server_online", "3");
+
+    @Param({"javascript", "nashorn", "expression"})
+    public String engineName;
+
+    @Param({"balance", "tick", "permission", "compound"})
+    public String scriptName;
+
+    private String script;
+    private VirtualChestScriptEngine engine;
+    private CompiledScript compiled;
+    private ScriptContext context;
+
+    @Setup
+    public void setup() throws ScriptException
+    {
+        this.script = SCRIPTS.get(this.scriptName);
+        switch (this.engineName)
+        {
+            case "javascript":
+                this.engine = new JavaScriptEngine();
+                break;
+            case "nashorn":
+                this.engine = new VirtualChestNashornScriptEngine();
+                break;
+            case "expression":
+                this.engine = new VirtualChestExpressionScriptEngine();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + this.engineName);
+        }
+        this.compiled = this.engine.compile(this.script);
+        this.context = new SimpleScriptContext();
+
+        Function<String, Object> papi = PLACEHOLDERS::get;
+        Player player = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class},
+                (proxy, method, args) -> "hasPermission".equals(method.getName()) ? Boolean.TRUE : null);
+
+        this.context.setAttribute("papi", papi, ScriptContext.ENGINE_SCOPE);
+        this.context.setAttribute("player", player, ScriptContext.ENGINE_SCOPE);
+        this.context.setAttribute("tick", 42L, ScriptContext.ENGINE_SCOPE);
+    }
+
+    @Benchmark
+    public CompiledScript compile() throws ScriptException
+    {
+        return this.engine.compile(this.script);
+    }
+
+    @Benchmark
+    public Object eval() throws ScriptException
+    {
+        return this.compiled.eval(this.context);
+    }
+
+    private static class JavaScriptEngine implements VirtualChestScriptEngine
+    {
+        private final ScriptEngine scriptEngine = new ScriptEngineManager(null).getEngineByName("nashorn");
+
+        @Override
+        public CompiledScript compile(String script) throws ScriptException
+        {
+            return ((Compilable) this.scriptEngine).compile(script);
+        }
+
+        @Override
+        public boolean isJavaScript()
+        {
+            return true;
+        }
+    }
+}
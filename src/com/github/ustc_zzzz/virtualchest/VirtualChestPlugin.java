@@ -8,6 +8,8 @@ import com.github.ustc_zzzz.virtualchest.economy.VirtualChestEconomyManager;
 import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventory;
 import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventoryBuilder;
 import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventoryDispatcher;
+import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestRefreshScheduler;
+import com.github.ustc_zzzz.virtualchest.inventory.item.VirtualChestItemStackCache;
 import com.github.ustc_zzzz.virtualchest.permission.VirtualChestPermissionManager;
 import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
 import com.github.ustc_zzzz.virtualchest.record.VirtualChestRecordManager;
@@ -109,6 +111,10 @@ public class VirtualChestPlugin
 
     private VirtualChestActionIntervalManager actionIntervalManager;
 
+    private VirtualChestItemStackCache itemStackCache;
+
+    private VirtualChestRefreshScheduler refreshScheduler;
+
     @Nullable
     private Object byteItemsService = null;
 
@@ -121,8 +127,13 @@ public class VirtualChestPlugin
         this.update.loadConfig(root.getNode(PLUGIN_ID, "check-update"));
         this.recordManager.loadConfig(root.getNode(PLUGIN_ID, "recording"));
         this.commandAliases.loadConfig(root.getNode(PLUGIN_ID, "command-aliases"));
+        this.scriptManager.loadConfig(root.getNode(PLUGIN_ID, "script-engine"));
         this.dispatcher.loadConfig(root.getNode(PLUGIN_ID, "scan-dirs"));
         this.actionIntervalManager.loadConfig(root.getNode(PLUGIN_ID, "acceptable-action-interval-tick"));
+        this.itemStackCache.loadConfig(root.getNode(PLUGIN_ID, "rendering", "item-stack-cache-size"));
+        this.refreshScheduler.loadConfig(root.getNode(PLUGIN_ID, "rendering", "tick-budget-millis"));
+        this.placeholderManager.getCache().loadConfig(root.getNode(PLUGIN_ID, "placeholder-cache"));
+        this.scriptManager.getWatchdog().loadConfig(root.getNode(PLUGIN_ID, "script-watchdog"));
 
         this.rootConfigNode = root;
     }
@@ -134,8 +145,13 @@ public class VirtualChestPlugin
         this.update.saveConfig(root.getNode(PLUGIN_ID, "check-update"));
         this.recordManager.saveConfig(root.getNode(PLUGIN_ID, "recording"));
         this.commandAliases.saveConfig(root.getNode(PLUGIN_ID, "command-aliases"));
+        this.scriptManager.saveConfig(root.getNode(PLUGIN_ID, "script-engine"));
         this.dispatcher.saveConfig(root.getNode(PLUGIN_ID, "scan-dirs"));
         this.actionIntervalManager.saveConfig(root.getNode(PLUGIN_ID, "acceptable-action-interval-tick"));
+        this.itemStackCache.saveConfig(root.getNode(PLUGIN_ID, "rendering", "item-stack-cache-size"));
+        this.refreshScheduler.saveConfig(root.getNode(PLUGIN_ID, "rendering", "tick-budget-millis"));
+        this.placeholderManager.getCache().saveConfig(root.getNode(PLUGIN_ID, "placeholder-cache"));
+        this.scriptManager.getWatchdog().saveConfig(root.getNode(PLUGIN_ID, "script-watchdog"));
 
         config.save(root);
     }
@@ -203,6 +219,12 @@ public class VirtualChestPlugin
         }
     }
 
+    @Listener
+    public void onClientConnectionDisconnect(ClientConnectionEvent.Disconnect event)
+    {
+        this.dispatcher.release(event.getTargetEntity());
+    }
+
     @Listener
     public void onReload(GameReloadEvent event)
     {
@@ -242,6 +264,8 @@ public class VirtualChestPlugin
         this.placeholderManager = new VirtualChestPlaceholderManager(this);
         this.virtualChestCommandManager = new VirtualChestCommandManager(this);
         this.actionIntervalManager = new VirtualChestActionIntervalManager(this);
+        this.itemStackCache = new VirtualChestItemStackCache(this);
+        this.refreshScheduler = new VirtualChestRefreshScheduler(this);
 
         if (Sponge.getPluginManager().getPlugin("byte-items").isPresent())
         {
@@ -310,6 +334,11 @@ public class VirtualChestPlugin
         return this.recordManager;
     }
 
+    public VirtualChestCommandManager getVirtualChestCommandManager()
+    {
+        return this.virtualChestCommandManager;
+    }
+
     public VirtualChestActions getVirtualChestActions()
     {
         return this.virtualChestActions;
@@ -345,6 +374,16 @@ public class VirtualChestPlugin
         return this.actionIntervalManager;
     }
 
+    public VirtualChestItemStackCache getItemStackCache()
+    {
+        return this.itemStackCache;
+    }
+
+    public VirtualChestRefreshScheduler getRefreshScheduler()
+    {
+        return this.refreshScheduler;
+    }
+
     @Nullable
     public Object getByteItemsService()
     {
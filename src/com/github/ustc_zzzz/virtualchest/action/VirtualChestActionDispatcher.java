@@ -26,8 +26,6 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * @author ustc_zzzz
@@ -46,24 +44,25 @@ public class VirtualChestActionDispatcher
     private final ImmutableList<VirtualChestHandheldItem> handheldItem;
     private final ImmutableList<Boolean> keepInventoryOpen;
 
-    private final ImmutableList<List<String>> commands;
-    private final ImmutableList<List<String>> commandsAfter;
-    private final ImmutableList<List<String>> commandsBefore;
+    private final ImmutableList<VirtualChestActionPipeline> commands;
+    private final ImmutableList<VirtualChestActionPipeline> commandsAfter;
+    private final ImmutableList<VirtualChestActionPipeline> commandsBefore;
 
     private final ImmutableList<DataContainer> views;
 
     private final int size;
 
-    public VirtualChestActionDispatcher(List<DataView> views)
+    public VirtualChestActionDispatcher(VirtualChestPlugin plugin, List<DataView> views)
     {
         this.size = views.size();
+        VirtualChestActions actions = plugin.getVirtualChestActions();
 
         ImmutableList.Builder<VirtualChestHandheldItem> handheldItemBuilder = ImmutableList.builder();
         ImmutableList.Builder<Boolean> keepInventoryOpenBuilder = ImmutableList.builder();
 
-        ImmutableList.Builder<List<String>> commandsBuilder = ImmutableList.builder();
-        ImmutableList.Builder<List<String>> commandsAfterBuilder = ImmutableList.builder();
-        ImmutableList.Builder<List<String>> commandsBeforeBuilder = ImmutableList.builder();
+        ImmutableList.Builder<VirtualChestActionPipeline> commandsBuilder = ImmutableList.builder();
+        ImmutableList.Builder<VirtualChestActionPipeline> commandsAfterBuilder = ImmutableList.builder();
+        ImmutableList.Builder<VirtualChestActionPipeline> commandsBeforeBuilder = ImmutableList.builder();
 
         ImmutableList.Builder<DataContainer> dataContainerBuilder = ImmutableList.builder();
 
@@ -72,9 +71,9 @@ public class VirtualChestActionDispatcher
             handheldItemBuilder.add(this.parseHandheldItem(view));
             keepInventoryOpenBuilder.add(view.getBoolean(KEEP_INVENTORY_OPEN).orElse(false));
 
-            commandsBuilder.add(parseCommand(view.getString(COMMAND).orElse("")));
-            commandsAfterBuilder.add(parseCommand(view.getString(COMMAND_AFTER).orElse("")));
-            commandsBeforeBuilder.add(parseCommand(view.getString(COMMAND_BEFORE).orElse("")));
+            commandsBuilder.add(parsePipeline(actions, view.getString(COMMAND).orElse("")));
+            commandsAfterBuilder.add(parsePipeline(actions, view.getString(COMMAND_AFTER).orElse("")));
+            commandsBeforeBuilder.add(parsePipeline(actions, view.getString(COMMAND_BEFORE).orElse("")));
 
             dataContainerBuilder.add(view.copy());
         }
@@ -123,13 +122,8 @@ public class VirtualChestActionDispatcher
                     VirtualChestActions actions = plugin.getVirtualChestActions();
                     ClassToInstanceMap<Context> map = getContextMap(actionUUID, player, itemTemplate);
 
-                    List<String> commands = this.commands.get(i);
-                    List<String> commandsAfter = this.commandsAfter.get(i);
-                    List<String> commandsBefore = this.commandsBefore.get(i);
-
-                    Stream<String> stream = IntStream.rangeClosed(0, rep).boxed().flatMap(o -> commands.stream());
-                    stream = Stream.concat(Stream.concat(commandsBefore.stream(), stream), commandsAfter.stream());
-                    return Tuple.of(this.keepInventoryOpen.get(i), actions.submitCommands(player, stream, map, record));
+                    List<VirtualChestActionPipeline.Step> steps = this.getSteps(actions, i, rep);
+                    return Tuple.of(this.keepInventoryOpen.get(i), actions.submitCommands(player, steps, map, record));
                 }
                 areSearchingInventory[i] = false; // otherwise do not search inventory for it in step 2
             }
@@ -172,20 +166,30 @@ public class VirtualChestActionDispatcher
                     VirtualChestActions actions = plugin.getVirtualChestActions();
                     ClassToInstanceMap<Context> map = getContextMap(actionUUID, player, itemTemplate);
 
-                    List<String> commands = this.commands.get(i);
-                    List<String> commandsAfter = this.commandsAfter.get(i);
-                    List<String> commandsBefore = this.commandsBefore.get(i);
-
-                    Stream<String> stream = IntStream.rangeClosed(0, rep).boxed().flatMap(o -> commands.stream());
-                    stream = Stream.concat(Stream.concat(commandsBefore.stream(), stream), commandsAfter.stream());
-
-                    return Tuple.of(this.keepInventoryOpen.get(i), actions.submitCommands(player, stream, map, record));
+                    List<VirtualChestActionPipeline.Step> steps = this.getSteps(actions, i, rep);
+                    return Tuple.of(this.keepInventoryOpen.get(i), actions.submitCommands(player, steps, map, record));
                 }
             }
         }
         return Tuple.of(Boolean.TRUE, CompletableFuture.completedFuture(CommandResult.success()));
     }
 
+    private List<VirtualChestActionPipeline.Step> getSteps(VirtualChestActions actions, int index, int repetition)
+    {
+        List<VirtualChestActionPipeline.Step> commands = this.commands.get(index).getSteps(actions);
+        List<VirtualChestActionPipeline.Step> commandsAfter = this.commandsAfter.get(index).getSteps(actions);
+        List<VirtualChestActionPipeline.Step> commandsBefore = this.commandsBefore.get(index).getSteps(actions);
+
+        // commands are repeated without being compiled again
+        ImmutableList.Builder<VirtualChestActionPipeline.Step> builder = ImmutableList.builder();
+        builder.addAll(commandsBefore);
+        for (int i = 0; i <= repetition; ++i)
+        {
+            builder.addAll(commands);
+        }
+        return builder.addAll(commandsAfter).build();
+    }
+
     private static ClassToInstanceMap<Context> getContextMap(UUID actionUUID, Player player, VirtualChestHandheldItem itemTemplate)
     {
         ImmutableClassToInstanceMap.Builder<Context> contextBuilder = ImmutableClassToInstanceMap.builder();
@@ -215,6 +219,11 @@ public class VirtualChestActionDispatcher
         return view.getView(HANDHELD_ITEM).map(VirtualChestHandheldItem::new).orElse(VirtualChestHandheldItem.DEFAULT);
     }
 
+    public static VirtualChestActionPipeline parsePipeline(VirtualChestActions actions, String commandSequence)
+    {
+        return new VirtualChestActionPipeline(actions, parseCommand(commandSequence));
+    }
+
     public static List<String> parseCommand(String commandSequence)
     {
         StringBuilder stringBuilder = new StringBuilder();
@@ -0,0 +1,117 @@
+package com.github.ustc_zzzz.virtualchest.action;
+
+import com.github.ustc_zzzz.virtualchest.api.action.VirtualChestActionExecutor;
+import com.github.ustc_zzzz.virtualchest.api.action.VirtualChestActionExecutor.Context;
+import com.google.common.collect.ClassToInstanceMap;
+import com.google.common.collect.ImmutableList;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.util.Tuple;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Runs the executors of submitted commands one by one. Results which have already been completed
+ * (which is the case for most executors such as {@code tell} and {@code cost}) are passed to the
+ * next executor in a flat loop, and the loop is only suspended on pending results such as the ones
+ * of {@code delay}, so no futures are chained and the stack does not grow for each executor. An
+ * executor which fails, either by throwing or by completing exceptionally, stops the loop and the
+ * failure is passed to {@link #onError}.
+ *
+ * @author ustc_zzzz
+ */
+abstract class VirtualChestActionLoop implements Consumer<CommandResult>
+{
+    private final ClassToInstanceMap<Context> context;
+    private final Queue<Tuple<VirtualChestActionPipeline.Step, String>> commandList;
+
+    private List<VirtualChestActionExecutor> executors = ImmutableList.of();
+    private int executorIndex = 0;
+    private String suffix = "";
+
+    VirtualChestActionLoop(Queue<Tuple<VirtualChestActionPipeline.Step, String>> commandList,
+                           ClassToInstanceMap<Context> context)
+    {
+        this.context = context;
+        this.commandList = commandList;
+    }
+
+    protected abstract void onCommand(VirtualChestActionPipeline.Step step, String suffix);
+
+    protected abstract void onComplete(CommandResult commandResult);
+
+    protected abstract void onError(Throwable throwable);
+
+    @Override
+    public final void accept(CommandResult commandResult)
+    {
+        CommandResult result = commandResult;
+        while (true)
+        {
+            if (this.executorIndex < this.executors.size())
+            {
+                VirtualChestActionExecutor executor = this.executors.get(this.executorIndex++);
+                CompletableFuture<CommandResult> future;
+                try
+                {
+                    future = executor.execute(result, this.suffix, this.context);
+                }
+                catch (RuntimeException e)
+                {
+                    this.onError(e);
+                    return;
+                }
+                if (!future.isDone())
+                {
+                    future.whenComplete(this::resume); // resume the loop when it completes
+                    return;
+                }
+                try
+                {
+                    result = future.join();
+                }
+                catch (CompletionException | CancellationException e)
+                {
+                    this.onError(unwrap(e));
+                    return; // the remaining commands are abandoned
+                }
+            }
+            else
+            {
+                Tuple<VirtualChestActionPipeline.Step, String> t = this.commandList.poll();
+                if (Objects.isNull(t))
+                {
+                    this.onComplete(result);
+                    return;
+                }
+                this.executors = t.getFirst().getExecutors();
+                this.executorIndex = 0;
+                this.suffix = t.getSecond();
+                this.onCommand(t.getFirst(), this.suffix);
+            }
+        }
+    }
+
+    private void resume(CommandResult commandResult, Throwable throwable)
+    {
+        if (Objects.isNull(throwable))
+        {
+            this.accept(commandResult);
+        }
+        else
+        {
+            this.onError(unwrap(throwable));
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable)
+    {
+        boolean isWrapped = throwable instanceof CompletionException && Objects.nonNull(throwable.getCause());
+        return isWrapped ? throwable.getCause() : throwable;
+    }
+}
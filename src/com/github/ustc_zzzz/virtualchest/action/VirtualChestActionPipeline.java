@@ -0,0 +1,89 @@
+package com.github.ustc_zzzz.virtualchest.action;
+
+import com.github.ustc_zzzz.virtualchest.api.action.VirtualChestActionExecutor;
+import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
+import com.google.common.collect.ImmutableList;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.TextTemplate;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Commands compiled when chest GUIs are loaded. The prefix of every command is resolved to its
+ * executors, and the placeholders in the rest of the command are parsed into a template, so that
+ * only placeholders are filled when the commands are submitted. The commands are compiled again
+ * only if some executors are registered after they are compiled.
+ *
+ * @author ustc_zzzz
+ */
+public final class VirtualChestActionPipeline
+{
+    private final List<String> commands;
+
+    private volatile Compiled compiled;
+
+    public VirtualChestActionPipeline(VirtualChestActions actions, List<String> commands)
+    {
+        this.commands = ImmutableList.copyOf(commands);
+        this.compiled = new Compiled(actions.getExecutorVersion(), actions.compile(this.commands));
+    }
+
+    public List<Step> getSteps(VirtualChestActions actions)
+    {
+        Compiled compiled = this.compiled;
+        int version = actions.getExecutorVersion();
+        if (compiled.version != version)
+        {
+            compiled = new Compiled(version, actions.compile(this.commands));
+            this.compiled = compiled;
+        }
+        return compiled.steps;
+    }
+
+    private static final class Compiled
+    {
+        private final int version;
+        private final List<Step> steps;
+
+        private Compiled(int version, List<Step> steps)
+        {
+            this.version = version;
+            this.steps = steps;
+        }
+    }
+
+    public static final class Step
+    {
+        private final String prefix;
+        private final String suffix;
+        private final TextTemplate suffixTemplate;
+        private final List<VirtualChestActionExecutor> executors;
+
+        Step(String prefix, String suffix, @Nullable TextTemplate suffixTemplate,
+             List<VirtualChestActionExecutor> executors)
+        {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.suffixTemplate = suffixTemplate;
+            this.executors = ImmutableList.copyOf(executors);
+        }
+
+        public String getPrefix()
+        {
+            return this.prefix;
+        }
+
+        public List<VirtualChestActionExecutor> getExecutors()
+        {
+            return this.executors;
+        }
+
+        public String fillSuffix(Player player, VirtualChestPlaceholderManager placeholderManager)
+        {
+            TextTemplate template = this.suffixTemplate;
+            return Objects.isNull(template) ? this.suffix : placeholderManager.parseText(player, template);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.spongepowered.api.network.ChannelBinding;
 import org.spongepowered.api.network.ChannelRegistrar;
 import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.TextTemplate;
 import org.spongepowered.api.text.chat.ChatTypes;
 import org.spongepowered.api.text.serializer.TextSerializers;
 import org.spongepowered.api.text.title.Title;
@@ -38,9 +39,7 @@ import org.spongepowered.api.world.World;
 import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Stream;
 
 /**
  * @author ustc_zzzz
@@ -57,6 +56,8 @@ public final class VirtualChestActions
 
     private ChannelBinding.RawDataChannel bungeeCordChannel;
 
+    private volatile int executorVersion = 0;
+
     public VirtualChestActions(VirtualChestPlugin plugin)
     {
         this.plugin = plugin;
@@ -88,6 +89,7 @@ public final class VirtualChestActions
         this.executors.put("sound", this::processSound);
         this.executors.put("sound-with-pitch", this::processSoundWithPitch);
 
+        ++this.executorVersion;
         Sponge.getEventManager().post(new LoadEvent());
     }
 
@@ -96,12 +98,16 @@ public final class VirtualChestActions
         return this.activateUUIDMap.get(identifier);
     }
 
-    public CompletableFuture<CommandResult> submitCommands(Player player, Stream<String> commands,
-                                                           ClassToInstanceMap<Context> context, boolean record)
+    public int getExecutorVersion()
+    {
+        return this.executorVersion;
+    }
+
+    List<VirtualChestActionPipeline.Step> compile(List<String> commands)
     {
         VirtualChestPlaceholderManager placeholderManager = this.plugin.getPlaceholderManager();
-        LinkedList<Tuple<String, String>> commandList = new LinkedList<>();
-        commands.forEach(command ->
+        ImmutableList.Builder<VirtualChestActionPipeline.Step> builder = ImmutableList.builder();
+        for (String command : commands)
         {
             int colonPos = command.indexOf(PREFIX_SPLITTER);
             String prefix = colonPos > 0 ? command.substring(0, colonPos) : "";
@@ -113,13 +119,33 @@ public final class VirtualChestActions
                     ++suffixPosition;
                 }
                 String suffix = command.substring(suffixPosition);
-                commandList.add(Tuple.of(prefix, placeholderManager.parseText(player, suffix)));
+                builder.add(this.compileStep(prefix, suffix, placeholderManager));
             }
             else if (!command.isEmpty())
             {
-                commandList.add(Tuple.of("", placeholderManager.parseText(player, command)));
+                builder.add(this.compileStep("", command, placeholderManager));
             }
-        });
+        }
+        return builder.build();
+    }
+
+    private VirtualChestActionPipeline.Step compileStep(String prefix, String suffix,
+                                                        VirtualChestPlaceholderManager placeholderManager)
+    {
+        // the same condition as parsing texts directly, so the results are exactly the same
+        TextTemplate template = suffix.indexOf('%') < 0 ? null : placeholderManager.toTemplate(suffix);
+        return new VirtualChestActionPipeline.Step(prefix, suffix, template, this.executors.get(prefix));
+    }
+
+    public CompletableFuture<CommandResult> submitCommands(Player player, List<VirtualChestActionPipeline.Step> steps,
+                                                           ClassToInstanceMap<Context> context, boolean record)
+    {
+        VirtualChestPlaceholderManager placeholderManager = this.plugin.getPlaceholderManager();
+        LinkedList<Tuple<VirtualChestActionPipeline.Step, String>> commandList = new LinkedList<>();
+        for (VirtualChestActionPipeline.Step step : steps)
+        {
+            commandList.add(Tuple.of(step, step.fillSuffix(player, placeholderManager)));
+        }
         plugin.getLogger().debug("Player {} tries to run {} command(s)", player.getName(), commandList.size());
         return new Callback(commandList, context, record).start();
     }
@@ -349,22 +375,21 @@ public final class VirtualChestActions
         return CompletableFuture.completedFuture(Sponge.getCommandManager().process(source, command));
     }
 
-    private class Callback implements Consumer<CommandResult>
+    private class Callback extends VirtualChestActionLoop
     {
         private int actionOrder = -1;
 
         private final boolean record;
         private final UUID actionUUID;
         private final ClassToInstanceMap<Context> context;
-        private final Queue<Tuple<String, String>> commandList;
         private final CompletableFuture<CommandResult> future = new CompletableFuture<>();
 
-        private Callback(LinkedList<Tuple<String, String>> commandList,
+        private Callback(LinkedList<Tuple<VirtualChestActionPipeline.Step, String>> commandList,
                          ClassToInstanceMap<Context> contextMap, boolean record)
         {
+            super(commandList, contextMap);
             this.record = record;
             this.context = contextMap;
-            this.commandList = commandList;
             this.actionUUID = contextMap.getInstance(Context.ACTION_UUID).getActionUniqueId();
         }
 
@@ -375,35 +400,37 @@ public final class VirtualChestActions
         }
 
         @Override
-        public void accept(CommandResult commandResult)
+        protected void onCommand(VirtualChestActionPipeline.Step step, String suffix)
         {
             Optional<Player> playerOptional = context.getInstance(Context.PLAYER).getPlayer();
-            Tuple<String, String> t = commandList.poll();
-            if (Objects.isNull(t))
+            ++actionOrder;
+            String prefix = step.getPrefix();
+            String command = prefix.isEmpty() ? suffix : prefix + ": " + suffix;
+            playerOptional.ifPresent(p -> activateUUIDMap.put(p.getIdentifier(), actionUUID));
+            if (record)
             {
-                playerOptional.ifPresent(p -> activateUUIDMap.remove(p.getIdentifier(), actionUUID));
-                logger.debug("All the commands for {} has been executed", actionUUID);
-                future.complete(commandResult);
-            }
-            else
-            {
-                ++actionOrder;
-                String prefix = t.getFirst(), suffix = t.getSecond();
-                String command = prefix.isEmpty() ? suffix : prefix + ": " + suffix;
-                playerOptional.ifPresent(p -> activateUUIDMap.put(p.getIdentifier(), actionUUID));
-                if (record)
-                {
-                    plugin.getRecordManager().recordExecution(actionUUID, actionOrder, prefix, suffix);
-                    logger.debug("{} is now executed for {}", new JsonPrimitive(command).toString(), actionUUID);
-                }
-                CompletableFuture<CommandResult> future = CompletableFuture.completedFuture(commandResult);
-                for (VirtualChestActionExecutor action : executors.get(prefix))
-                {
-                    future = future.thenCompose(parent -> action.execute(parent, suffix, context));
-                }
-                future.thenAccept(this);
+                plugin.getRecordManager().recordExecution(actionUUID, actionOrder, prefix, suffix);
+                logger.debug("{} is now executed for {}", new JsonPrimitive(command).toString(), actionUUID);
             }
         }
+
+        @Override
+        protected void onComplete(CommandResult commandResult)
+        {
+            Optional<Player> playerOptional = context.getInstance(Context.PLAYER).getPlayer();
+            playerOptional.ifPresent(p -> activateUUIDMap.remove(p.getIdentifier(), actionUUID));
+            logger.debug("All the commands for {} has been executed", actionUUID);
+            future.complete(commandResult);
+        }
+
+        @Override
+        protected void onError(Throwable throwable)
+        {
+            Optional<Player> playerOptional = context.getInstance(Context.PLAYER).getPlayer();
+            playerOptional.ifPresent(p -> activateUUIDMap.remove(p.getIdentifier(), actionUUID));
+            logger.error("Error found when executing commands for " + actionUUID + ", skip the rest", throwable);
+            future.completeExceptionally(throwable);
+        }
     }
 
     private static class TitleManager
@@ -509,6 +536,8 @@ public final class VirtualChestActions
         public void register(String prefix, VirtualChestActionExecutor actionExecutor)
         {
             VirtualChestActions.this.executors.put(prefix, actionExecutor);
+            // compiled commands will be compiled again when they are submitted next time
+            ++VirtualChestActions.this.executorVersion;
         }
     }
 }
@@ -92,10 +92,7 @@ public class VirtualChestCommandAliases
     private CommandResult processAliasCommand(String name, CommandSource src, CommandContext args) throws CommandException
     {
         Collection<Player> players = args.getAll("player");
-        for (Player player : players)
-        {
-            commandManager.process(src, "virtualchest open " + name + " " + player.getName());
-        }
+        this.plugin.getVirtualChestCommandManager().openInventory(src, name, players);
         return CommandResult.success();
     }
 
@@ -2,16 +2,18 @@ package com.github.ustc_zzzz.virtualchest.command;
 
 import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
 import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventoryDispatcher;
+import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderCache;
+import com.github.ustc_zzzz.virtualchest.script.VirtualChestJavaScriptManager;
+import com.github.ustc_zzzz.virtualchest.script.VirtualChestScriptWatchdog;
 import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
 import com.github.ustc_zzzz.virtualchest.unsafe.SpongeUnimplemented;
+import com.google.common.cache.CacheStats;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.command.*;
 import org.spongepowered.api.command.args.CommandContext;
 import org.spongepowered.api.command.args.GenericArguments;
 import org.spongepowered.api.command.spec.CommandSpec;
 import org.spongepowered.api.entity.living.player.Player;
-import org.spongepowered.api.scheduler.Scheduler;
-import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.text.action.TextActions;
 import org.spongepowered.api.text.format.TextColors;
@@ -24,6 +26,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -51,6 +54,8 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
     private final CommandCallable updateCommand;
     private final CommandCallable openCommand;
     private final CommandCallable versionCommand;
+    private final CommandCallable statsCommand;
+    private final CommandCallable scriptsCommand;
 
     public VirtualChestCommandManager(VirtualChestPlugin plugin)
     {
@@ -86,6 +91,19 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
                 .description(this.translation.take("virtualchest.version.description"))
                 .arguments(GenericArguments.none())
                 .executor(this::processVersionCommand).build();
+
+        this.statsCommand = CommandSpec.builder()
+                .description(this.translation.take("virtualchest.stats.description"))
+                .arguments(GenericArguments.none())
+                .executor(this::processStatsCommand).build();
+
+        this.scriptsCommand = CommandSpec.builder()
+                .description(this.translation.take("virtualchest.scripts.description"))
+                .child(CommandSpec.builder()
+                        .description(this.translation.take("virtualchest.scripts.top.description"))
+                        .arguments(GenericArguments.optional(GenericArguments.integer(Text.of("count")), 10))
+                        .executor(this::processScriptsTopCommand).build(), "top", "t")
+                .build();
     }
 
     public void init()
@@ -136,8 +154,13 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
     {
         // noinspection ConstantConditions
         String inventoryName = args.<String>getOne("inventory").get();
-        Collection<Player> players = args.getAll("player");
-        Scheduler spongeScheduler = Sponge.getScheduler();
+        this.openInventory(source, inventoryName, args.getAll("player"));
+        return CommandResult.success();
+    }
+
+    public void openInventory(CommandSource source, String inventoryName, Collection<Player> players)
+            throws CommandException
+    {
         for (Player player : players)
         {
             if (player.equals(source))
@@ -156,10 +179,8 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
                     throw new CommandException(this.translation.take(errorKey, inventoryName, player.getName()));
                 }
             }
-            Task.Builder builder = spongeScheduler.createTaskBuilder().name("VirtualChestCommandManager");
-            builder.execute(task -> this.plugin.getDispatcher().open(inventoryName, player)).submit(this.plugin);
         }
-        return CommandResult.success();
+        this.plugin.getDispatcher().openAll(inventoryName, players);
     }
 
     private CommandResult processUpdateCommand(CommandSource source, CommandContext args) throws CommandException
@@ -192,6 +213,57 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
         return CommandResult.success();
     }
 
+    private CommandResult processStatsCommand(CommandSource source, CommandContext args) throws CommandException
+    {
+        if (source instanceof Player && !source.hasPermission("virtualchest.stats"))
+        {
+            Text error = translation.take("virtualchest.stats.noPermission", source.getName());
+            throw new CommandException(error);
+        }
+        CacheStats itemStackCacheStats = this.plugin.getItemStackCache().getStats();
+        long itemStackCacheSize = this.plugin.getItemStackCache().getSize();
+        source.sendMessage(translation.take("virtualchest.stats.itemStackCache",
+                itemStackCacheStats.hitCount(), itemStackCacheStats.missCount(), itemStackCacheSize));
+        VirtualChestPlaceholderCache placeholderCache = this.plugin.getPlaceholderManager().getCache();
+        source.sendMessage(translation.take("virtualchest.stats.placeholderCache",
+                placeholderCache.getHitCount(), placeholderCache.getMissCount()));
+        VirtualChestJavaScriptManager scriptManager = this.plugin.getScriptManager();
+        source.sendMessage(translation.take("virtualchest.stats.requirementScripts",
+                scriptManager.getJavaScriptCount(), scriptManager.getEngineScriptCount(),
+                scriptManager.getJavaEvaluationCount(), scriptManager.getEngineEvaluationCount()));
+        source.sendMessage(translation.take("virtualchest.stats.requirementMemos",
+                scriptManager.getMemoizedScriptCount(), scriptManager.getMemoHitCount()));
+        source.sendMessage(translation.take("virtualchest.stats.refreshScheduler",
+                this.plugin.getRefreshScheduler().getSessionCount()));
+        this.plugin.getRefreshScheduler().getDeferralCounts().forEach((name, count) ->
+                source.sendMessage(translation.take("virtualchest.stats.refreshDeferral", name, count)));
+        return CommandResult.success();
+    }
+
+    private CommandResult processScriptsTopCommand(CommandSource source, CommandContext args) throws CommandException
+    {
+        if (source instanceof Player && !source.hasPermission("virtualchest.scripts"))
+        {
+            Text error = translation.take("virtualchest.scripts.noPermission", source.getName());
+            throw new CommandException(error);
+        }
+        // noinspection ConstantConditions
+        int count = Math.max(0, args.<Integer>getOne("count").get());
+        VirtualChestScriptWatchdog watchdog = this.plugin.getScriptManager().getWatchdog();
+        List<VirtualChestScriptWatchdog.Entry> entries = watchdog.getMostExpensiveEntries(count);
+        source.sendMessage(translation.take("virtualchest.scripts.top.overview", entries.size()));
+        for (int i = 0; i < entries.size(); ++i)
+        {
+            VirtualChestScriptWatchdog.Entry entry = entries.get(i);
+            String key = entry.isDisabled() ? "virtualchest.scripts.top.disabled" : "virtualchest.scripts.top.entry";
+            long calls = entry.getCount(), totalNanos = entry.getTotalNanos();
+            Text text = translation.take(key, i + 1, entry.getName(), entry.getSlotKey(), calls, totalNanos / 1E6,
+                    calls > 0 ? totalNanos / 1E6 / calls : 0.0, entry.getPercentileNanos(0.99) / 1E6);
+            source.sendMessage(text.toBuilder().onHover(TextActions.showText(Text.of(entry.getScript()))).build());
+        }
+        return CommandResult.success();
+    }
+
     private CommandResult processListCommand(CommandSource source, CommandContext args) throws CommandException
     {
         VirtualChestInventoryDispatcher dispatcher = this.plugin.getDispatcher();
@@ -237,6 +309,8 @@ public class VirtualChestCommandManager implements Supplier<CommandCallable>
                 .child(this.updateCommand, "update", "u")
                 .child(this.openCommand, "open", "o")
                 .child(this.versionCommand, "version", "v")
+                .child(this.statsCommand, "stats", "s")
+                .child(this.scriptsCommand, "scripts")
                 .build();
     }
 }
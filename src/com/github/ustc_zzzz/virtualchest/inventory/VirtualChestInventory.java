@@ -3,6 +3,7 @@ package com.github.ustc_zzzz.virtualchest.inventory;
 import co.aikar.timings.Timing;
 import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
 import com.github.ustc_zzzz.virtualchest.action.VirtualChestActionDispatcher;
+import com.github.ustc_zzzz.virtualchest.action.VirtualChestActionPipeline;
 import com.github.ustc_zzzz.virtualchest.action.VirtualChestActionIntervalManager;
 import com.github.ustc_zzzz.virtualchest.action.VirtualChestActions;
 import com.github.ustc_zzzz.virtualchest.api.VirtualChest;
@@ -14,7 +15,9 @@ import com.github.ustc_zzzz.virtualchest.inventory.item.VirtualChestItem;
 import com.github.ustc_zzzz.virtualchest.inventory.trigger.VirtualChestTriggerItem;
 import com.github.ustc_zzzz.virtualchest.permission.VirtualChestPermissionManager;
 import com.github.ustc_zzzz.virtualchest.record.VirtualChestRecordManager;
+import com.github.ustc_zzzz.virtualchest.script.VirtualChestJavaScriptManager;
 import com.github.ustc_zzzz.virtualchest.timings.VirtualChestTimings;
+import com.github.ustc_zzzz.virtualchest.unsafe.SpongePacketWindow;
 import com.github.ustc_zzzz.virtualchest.unsafe.SpongeUnimplemented;
 import com.google.common.collect.*;
 import org.slf4j.Logger;
@@ -31,15 +34,18 @@ import org.spongepowered.api.item.inventory.property.InventoryTitle;
 import org.spongepowered.api.item.inventory.property.SlotIndex;
 import org.spongepowered.api.item.inventory.transaction.SlotTransaction;
 import org.spongepowered.api.scheduler.SpongeExecutorService;
-import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.util.Coerce;
 import org.spongepowered.api.util.Tuple;
 import org.spongepowered.api.util.annotation.NonnullByDefault;
 
+import javax.script.CompiledScript;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 /**
@@ -54,6 +60,8 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
     static final DataQuery CLOSE_ACTION_COMMAND = DataQuery.of("CloseActionCommand");
     static final DataQuery UPDATE_INTERVAL_TICK = DataQuery.of("UpdateIntervalTick");
     static final DataQuery ACCEPTABLE_ACTION_INTERVAL_TICK = DataQuery.of("AcceptableActionIntervalTick");
+    static final DataQuery INVENTORY_POOL_SIZE = DataQuery.of("InventoryPoolSize");
+    static final DataQuery BACKEND = DataQuery.of("Backend");
     static final DataQuery TRIGGER_ITEM = DataQuery.of("TriggerItem");
 
     static final String KEY_PREFIX = "Slot";
@@ -62,10 +70,16 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
     private final VirtualChestPlugin plugin;
     private final SpongeExecutorService executorService;
     private final VirtualChestRecordManager recordManager;
-    private final VirtualChestInventoryDispatcher dispatcher;
     private final VirtualChestActionIntervalManager actionIntervalManager;
 
-    private final Map<UUID, Inventory> inventories = new HashMap<>();
+    private final Map<UUID, EventListener> listeners = new HashMap<>();
+    private final Deque<EventListener> pooledListeners = new ArrayDeque<>();
+    private final Map<UUID, ItemStackSnapshot[]> renderedSnapshots = new HashMap<>();
+    private final ItemStackSnapshot[] staticSnapshots;
+    private final boolean[] staticSlots;
+    private final SetMultimap<String, Integer> placeholderSlots;
+    private final Map<VirtualChestItem, Integer> combinedIndices = new IdentityHashMap<>();
+    private final Optional<Tuple<String, CompiledScript>> combinedRequirements;
 
     final List<List<VirtualChestItem>> items;
     final Text title;
@@ -73,14 +87,17 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
     final List<VirtualChestTriggerItem> triggerItems;
     final Optional<String> openActionCommand;
     final Optional<String> closeActionCommand;
+    final VirtualChestActionPipeline openActions;
+    final VirtualChestActionPipeline closeActions;
     final int updateIntervalTick;
     final OptionalInt acceptableActionIntervalTick;
+    final int inventoryPoolSize;
+    final Backend backend;
 
     VirtualChestInventory(VirtualChestPlugin plugin, VirtualChestInventoryBuilder builder)
     {
         this.plugin = plugin;
         this.logger = plugin.getLogger();
-        this.dispatcher = plugin.getDispatcher();
         this.recordManager = plugin.getRecordManager();
         this.actionIntervalManager = plugin.getActionIntervalManager();
         this.executorService = Sponge.getScheduler().createSyncExecutor(plugin);
@@ -90,9 +107,17 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
         this.triggerItems = ImmutableList.copyOf(builder.triggerItems);
         this.openActionCommand = builder.openActionCommand;
         this.closeActionCommand = builder.closeActionCommand;
+        this.openActions = this.parseActions(plugin, builder.openActionCommand);
+        this.closeActions = this.parseActions(plugin, builder.closeActionCommand);
         this.updateIntervalTick = builder.updateIntervalTick;
         this.items = this.createListFromMultiMap(builder.items, builder.height * 9);
+        this.staticSlots = this.classifyStaticSlots(this.items);
+        this.staticSnapshots = new ItemStackSnapshot[this.staticSlots.length];
+        this.placeholderSlots = this.collectPlaceholderSlots(this.items);
+        this.combinedRequirements = this.combineRequirements(this.items);
         this.acceptableActionIntervalTick = builder.actionIntervalTick.map(OptionalInt::of).orElse(OptionalInt.empty());
+        this.inventoryPoolSize = builder.inventoryPoolSize;
+        this.backend = builder.backend;
     }
 
     public boolean matchPrimaryAction(ItemStackSnapshot item)
@@ -109,46 +134,262 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
     public Inventory create(String inventoryName, Player player)
     {
         UUID uuid = player.getUniqueId();
-        if (!inventories.containsKey(uuid))
+        if (!listeners.containsKey(uuid))
         {
             try
             {
-                EventListener listener = new EventListener(player, inventoryName);
-                Inventory chestInventory = Inventory.builder().of(InventoryArchetypes.CHEST).withCarrier(player)
-                        .property(InventoryDimension.PROPERTY_NAME, new InventoryDimension(9, this.height))
-                        .property(InventoryTitle.PROPERTY_NAME, new InventoryTitle(this.title))
-                        .listener(InteractInventoryEvent.Close.class, listener::fireCloseEvent)
-                        .listener(InteractInventoryEvent.Open.class, listener::fireOpenEvent)
-                        .listener(ClickInventoryEvent.class, listener::fireClickEvent)
-                        .build(this.plugin);
-                inventories.put(uuid, chestInventory);
-                return chestInventory;
+                boolean isPooled = !pooledListeners.isEmpty();
+                EventListener listener = isPooled ? pooledListeners.pop() : this.createListener(player);
+                listener.bind(player, inventoryName);
+                listeners.put(uuid, listener);
+                return listener.inventory;
             }
             catch (Exception e)
             {
                 this.logger.error("There is something wrong with the GUI configuration (" + inventoryName + ")", e);
             }
         }
-        return inventories.get(uuid);
+        return Optional.ofNullable(listeners.get(uuid)).map(listener -> listener.inventory).orElse(null);
+    }
+
+    public void release(Player player)
+    {
+        UUID uuid = player.getUniqueId();
+        EventListener listener = listeners.remove(uuid);
+        renderedSnapshots.remove(uuid);
+        if (Objects.nonNull(listener) && Objects.nonNull(listener.window))
+        {
+            listener.window.release();
+        }
+        else if (Objects.nonNull(listener) && pooledListeners.size() < this.inventoryPoolSize)
+        {
+            listener.unbind();
+            pooledListeners.push(listener);
+        }
+    }
+
+    public boolean isPacketBased()
+    {
+        // fall back to the inventory backend if packet windows are not supported by the server
+        return this.backend == Backend.PACKET && SpongePacketWindow.isSupported();
+    }
+
+    public boolean isPacketBackendUnsupported()
+    {
+        return this.backend == Backend.PACKET && !SpongePacketWindow.isSupported();
+    }
+
+    public void openWindow(String name, Player player)
+    {
+        this.release(player);
+        EventListener listener = new EventListener();
+        listener.bind(player, name);
+        listeners.put(player.getUniqueId(), listener);
+        SpongePacketWindow window = SpongePacketWindow.open(player, this.title, this.height, listener, executorService);
+        listener.window = window;
+        listener.onOpen(player, window, p -> window.isOpen(), getWindowSlotSetter(window));
+    }
+
+    public void closeWindow(Player player)
+    {
+        EventListener listener = listeners.get(player.getUniqueId());
+        if (Objects.nonNull(listener) && Objects.nonNull(listener.window) && listener.window.isOpen())
+        {
+            listener.window.close();
+            listener.onClose(player, listener.window);
+        }
+    }
+
+    public boolean isWindowOpening(Player player)
+    {
+        EventListener listener = listeners.get(player.getUniqueId());
+        return Objects.nonNull(listener) && Objects.nonNull(listener.window) && listener.window.isOpen();
+    }
+
+    public void updateWindow(String name, Player player, IntPredicate filter)
+    {
+        EventListener listener = listeners.get(player.getUniqueId());
+        if (Objects.nonNull(listener) && Objects.nonNull(listener.window) && listener.window.isOpen())
+        {
+            this.updateSlots(name, player, getWindowSlotSetter(listener.window), filter);
+        }
+    }
+
+    private EventListener createListener(Player player)
+    {
+        EventListener listener = new EventListener();
+        Inventory.Builder builder = Inventory.builder().of(InventoryArchetypes.CHEST);
+        // pooled inventories are reused by other players, so they should not be carried by the player
+        listener.inventory = (this.inventoryPoolSize > 0 ? builder : builder.withCarrier(player))
+                .property(InventoryDimension.PROPERTY_NAME, new InventoryDimension(9, this.height))
+                .property(InventoryTitle.PROPERTY_NAME, new InventoryTitle(this.title))
+                .listener(InteractInventoryEvent.Close.class, listener::fireCloseEvent)
+                .listener(InteractInventoryEvent.Open.class, listener::fireOpenEvent)
+                .listener(ClickInventoryEvent.class, listener::fireClickEvent)
+                .build(this.plugin);
+        return listener;
     }
 
     @Override
     public Consumer<Inventory> getUpdaterFor(String name, Player player)
     {
-        return inventory ->
+        return inventory -> this.updateSlots(name, player, getSlotSetter(inventory), index -> true);
+    }
+
+    @Override
+    public Consumer<Inventory> getUpdaterFor(String name, Player player, Set<Integer> slotIndices)
+    {
+        return inventory -> this.updateSlots(name, player, getSlotSetter(inventory), slotIndices::contains);
+    }
+
+    public Set<Integer> getSlotsDependingOn(String placeholderKey)
+    {
+        return this.placeholderSlots.get(placeholderKey);
+    }
+
+    private VirtualChestActionPipeline parseActions(VirtualChestPlugin plugin, Optional<String> command)
+    {
+        return VirtualChestActionDispatcher.parsePipeline(plugin.getVirtualChestActions(), command.orElse(""));
+    }
+
+    private Optional<Tuple<String, CompiledScript>> combineRequirements(List<List<VirtualChestItem>> items)
+    {
+        VirtualChestJavaScriptManager scriptManager = this.plugin.getScriptManager();
+        List<Tuple<String, CompiledScript>> requirements = new ArrayList<>();
+        for (List<VirtualChestItem> list : items)
         {
-            try (Timing ignored1 = VirtualChestTimings.updateAndRefreshMappings(name).startTiming())
+            for (VirtualChestItem item : list)
             {
-                int index = 0;
-                for (Slot slot : inventory.<Slot>slots())
+                if (scriptManager.isCombinable(item.getRequirements()))
+                {
+                    this.combinedIndices.put(item, requirements.size());
+                    requirements.add(item.getRequirements());
+                }
+            }
+        }
+        Optional<Tuple<String, CompiledScript>> combined = Optional.empty();
+        if (requirements.size() > 1)
+        {
+            combined = scriptManager.prepareCombined(requirements);
+        }
+        if (!combined.isPresent())
+        {
+            this.combinedIndices.clear();
+        }
+        return combined;
+    }
+
+    private Boolean[] matchCombinedRequirements(String name, Player player, IntPredicate filter)
+    {
+        int size = this.combinedIndices.size(), count = 0;
+        for (int index = 0; index < this.items.size(); ++index)
+        {
+            if (filter.test(index))
+            {
+                count += this.items.get(index).stream().filter(this.combinedIndices::containsKey).count();
+            }
+        }
+        // it is not worth evaluating all the requirements if only a few of them are needed
+        if (this.combinedRequirements.isPresent() && count * 2 >= size)
+        {
+            return this.plugin.getScriptManager().executeCombined(player, this.combinedRequirements.get(), size, name);
+        }
+        return new Boolean[size];
+    }
+
+    private Set<String> collectPlaceholderKeys(IntPredicate filter)
+    {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Integer> entry : this.placeholderSlots.entries())
+        {
+            if (filter.test(entry.getValue()))
+            {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    private static ObjIntConsumer<ItemStackSnapshot> getSlotSetter(Inventory inventory)
+    {
+        List<Slot> slots = ImmutableList.copyOf(inventory.<Slot>slots());
+        return (snapshot, index) ->
+        {
+            if (snapshot.isEmpty())
+            {
+                slots.get(index).clear();
+            }
+            else
+            {
+                slots.get(index).set(snapshot.createStack());
+            }
+        };
+    }
+
+    private static ObjIntConsumer<ItemStackSnapshot> getWindowSlotSetter(SpongePacketWindow window)
+    {
+        return (snapshot, index) -> window.setSlot(index, snapshot);
+    }
+
+    private void updateSlots(String name, Player player, ObjIntConsumer<ItemStackSnapshot> setter, IntPredicate filter)
+    {
+        try (Timing ignored1 = VirtualChestTimings.updateAndRefreshMappings(name).startTiming())
+        {
+            UUID uuid = player.getUniqueId();
+            ItemStackSnapshot[] snapshots = this.renderedSnapshots.computeIfAbsent(uuid, this::createSnapshots);
+            this.plugin.getPlaceholderManager().prefetch(player, this.collectPlaceholderKeys(filter));
+            Boolean[] matched = this.matchCombinedRequirements(name, player, filter);
+            for (int index = 0; index < snapshots.length; ++index)
+            {
+                // static slots never change after they are set with the shared item
+                if (filter.test(index) && !this.isSharedSnapshotSet(snapshots, index))
                 {
                     try (Timing ignored2 = VirtualChestTimings.updateAndRefreshMapping(name, index).startTiming())
                     {
-                        this.setItemInInventory(player, slot, index++, name);
+                        this.setItemInInventory(player, setter, snapshots, matched, index, name);
                     }
                 }
             }
-        };
+        }
+    }
+
+    private boolean isSharedSnapshotSet(ItemStackSnapshot[] snapshots, int index)
+    {
+        ItemStackSnapshot snapshot = this.staticSnapshots[index];
+        return this.staticSlots[index] && Objects.nonNull(snapshot) && snapshot == snapshots[index];
+    }
+
+    private ItemStackSnapshot[] createSnapshots(UUID uuid)
+    {
+        return new ItemStackSnapshot[this.height * 9];
+    }
+
+    private boolean[] classifyStaticSlots(List<List<VirtualChestItem>> items)
+    {
+        boolean[] result = new boolean[items.size()];
+        for (int i = 0; i < result.length; ++i)
+        {
+            // the first item of a slot always matches if it is static, so the rest will never be rendered
+            List<VirtualChestItem> slotItems = items.get(i);
+            result[i] = slotItems.isEmpty() || slotItems.get(0).isStatic();
+        }
+        return result;
+    }
+
+    private SetMultimap<String, Integer> collectPlaceholderSlots(List<List<VirtualChestItem>> items)
+    {
+        ImmutableSetMultimap.Builder<String, Integer> builder = ImmutableSetMultimap.builder();
+        for (int i = 0; i < items.size(); ++i)
+        {
+            for (VirtualChestItem item : items.get(i))
+            {
+                for (String placeholderKey : item.getPlaceholderKeys())
+                {
+                    builder.put(placeholderKey, i);
+                }
+            }
+        }
+        return builder.build();
     }
 
     private <T> List<List<T>> createListFromMultiMap(Multimap<SlotIndex, T> list, int max)
@@ -161,18 +402,51 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
         return builder.build();
     }
 
-    private void setItemInInventory(Player player, Slot slot, int index, String name)
+    private void setItemInInventory(Player player, ObjIntConsumer<ItemStackSnapshot> setter,
+                                    ItemStackSnapshot[] snapshots, Boolean[] matched, int index, String name)
+    {
+        ItemStackSnapshot snapshot = this.renderItem(player, matched, index, name);
+        if (!snapshot.equals(snapshots[index])) // only touch the slot if the item is changed
+        {
+            setter.accept(snapshot, index);
+        }
+        snapshots[index] = snapshot;
+    }
+
+    private ItemStackSnapshot renderItem(Player player, Boolean[] matched, int index, String name)
+    {
+        if (this.staticSlots[index])
+        {
+            // rendered only once and shared by all the players
+            ItemStackSnapshot snapshot = this.staticSnapshots[index];
+            if (Objects.isNull(snapshot))
+            {
+                Tuple<ItemStackSnapshot, Boolean> rendered = this.renderDynamicItem(player, matched, index, name);
+                snapshot = rendered.getFirst();
+                if (rendered.getSecond()) // otherwise it is rendered again as a dynamic one at the next refresh
+                {
+                    this.staticSnapshots[index] = snapshot;
+                }
+            }
+            return snapshot;
+        }
+        return this.renderDynamicItem(player, matched, index, name).getFirst();
+    }
+
+    private Tuple<ItemStackSnapshot, Boolean> renderDynamicItem(Player player, Boolean[] matched,
+                                                                int index, String name)
     {
         List<VirtualChestItem> items = this.items.get(index);
         for (VirtualChestItem i : items)
         {
-            if (i.matchRequirements(player, index, name))
+            Integer combinedIndex = this.combinedIndices.get(i);
+            Boolean result = Objects.isNull(combinedIndex) ? null : matched[combinedIndex];
+            if (Objects.isNull(result) ? i.matchRequirements(player, index, name) : result)
             {
-                i.fillInventory(player, slot, index, name);
-                return;
+                return i.render(player, index, name);
             }
         }
-        slot.clear();
+        return Tuple.of(ItemStackSnapshot.NONE, true);
     }
 
     public static String slotIndexToKey(int index) throws InvalidDataException
@@ -212,6 +486,8 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
             container.set(TRIGGER_ITEM, containerList);
         }
         container.set(UPDATE_INTERVAL_TICK, this.updateIntervalTick);
+        container.set(INVENTORY_POOL_SIZE, this.inventoryPoolSize);
+        container.set(BACKEND, this.backend.toString());
         this.openActionCommand.ifPresent(c -> container.set(OPEN_ACTION_COMMAND, c));
         this.closeActionCommand.ifPresent(c -> container.set(CLOSE_ACTION_COMMAND, c));
         for (int i = 0; i < this.items.size(); i++)
@@ -234,6 +510,36 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
         return container;
     }
 
+    public enum Backend
+    {
+        INVENTORY("Inventory"), PACKET("Packet");
+
+        private final String name;
+
+        Backend(String name)
+        {
+            this.name = name;
+        }
+
+        public static Backend of(String name) throws InvalidDataException
+        {
+            for (Backend backend : values())
+            {
+                if (backend.name.equalsIgnoreCase(name))
+                {
+                    return backend;
+                }
+            }
+            throw new InvalidDataException("Unknown backend: " + name);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+
     public static class ClickStatus
     {
         public final boolean isShift;
@@ -262,95 +568,65 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
         }
     }
 
-    private class EventListener
+    private class EventListener implements SpongePacketWindow.Listener
     {
-        private final String name;
-        private final UUID playerUniqueId;
         private final SlotIndex slotToListen;
-        private final List<String> parsedOpenAction;
-        private final List<String> parsedCloseAction;
 
-        private EventListener(Player player, String inventoryName)
+        private String name = "";
+        private Inventory inventory;
+        private SpongePacketWindow window;
+        private Optional<UUID> playerUniqueId = Optional.empty();
+
+        private EventListener()
         {
-            this.parsedOpenAction = VirtualChestActionDispatcher.parseCommand(openActionCommand.orElse(""));
-            this.parsedCloseAction = VirtualChestActionDispatcher.parseCommand(closeActionCommand.orElse(""));
             this.slotToListen = SlotIndex.lessThan(height * 9);
-            this.playerUniqueId = player.getUniqueId();
+        }
+
+        private void bind(Player player, String inventoryName)
+        {
+            this.playerUniqueId = Optional.of(player.getUniqueId());
             this.name = inventoryName;
         }
 
+        private void unbind()
+        {
+            this.playerUniqueId = Optional.empty();
+            this.inventory.clear();
+        }
+
+        private Optional<Player> getPlayer()
+        {
+            return this.playerUniqueId.flatMap(Sponge.getServer()::getPlayer);
+        }
+
         private void fireOpenEvent(InteractInventoryEvent.Open e)
         {
-            Optional<Player> optional = Sponge.getServer().getPlayer(playerUniqueId);
+            Optional<Player> optional = this.getPlayer();
             if (optional.isPresent())
             {
-                Player player = optional.get();
-                UUID actionUUID = UUID.randomUUID();
-
                 Container targetContainer = e.getTargetInventory();
-                Inventory targetInventory = targetContainer.first();
-
-                VirtualChestActions actions = plugin.getVirtualChestActions();
-                ClassToInstanceMap<Context> context = getContextMap(player, actionUUID);
-                Consumer<Inventory> updater = VirtualChestInventory.this.getUpdaterFor(name, player);
-
-                if (recordManager.filter(name, VirtualChestInventory.this))
-                {
-                    recordManager.recordOpen(actionUUID, name, player);
-                    logger.debug("Player {} opens the chest GUI", player.getName());
-                    actions.submitCommands(player, parsedOpenAction.stream(), context, true);
-                }
-                else
-                {
-                    actions.submitCommands(player, parsedOpenAction.stream(), context, false);
-                }
-
-                if (updateIntervalTick > 0)
-                {
-                    Task.Builder builder = Sponge.getScheduler().createTaskBuilder().execute(task ->
-                    {
-                        if (!dispatcher.isInventoryOpening(player, targetContainer))
-                        {
-                            task.cancel();
-                        }
-                        updater.accept(targetInventory);
-                    });
-                    builder.delayTicks(updateIntervalTick).intervalTicks(updateIntervalTick).submit(plugin);
-                }
-
-                plugin.getScriptManager().onOpeningInventory(player);
-
-                updater.accept(targetInventory);
+                Predicate<Player> isOpening = p -> plugin.getDispatcher().isInventoryOpening(p, targetContainer);
+                this.onOpen(optional.get(), targetContainer, isOpening, getSlotSetter(targetContainer.first()));
             }
         }
 
         private void fireCloseEvent(InteractInventoryEvent.Close e)
         {
-            Optional<Player> optional = Sponge.getServer().getPlayer(playerUniqueId);
+            Optional<Player> optional = this.getPlayer();
             if (optional.isPresent())
             {
-                Player player = optional.get();
-                UUID actionUUID = UUID.randomUUID();
-                ClassToInstanceMap<Context> context = getContextMap(player, actionUUID);
-                boolean record = recordManager.filter(name, VirtualChestInventory.this);
-                if (record)
-                {
-                    recordManager.recordClose(actionUUID, name, player);
-                    logger.debug("Player {} closes the chest GUI", player.getName());
-                }
-                plugin.getVirtualChestActions().submitCommands(player, parsedCloseAction.stream(), context, record);
-
-                actionIntervalManager.onClosingInventory(player);
+                this.onClose(optional.get(), e.getTargetInventory());
             }
         }
 
         private void fireClickEvent(ClickInventoryEvent e)
         {
-            Optional<Player> optional = Sponge.getServer().getPlayer(playerUniqueId);
+            Optional<Player> optional = this.getPlayer();
             if (optional.isPresent())
             {
                 Player player = optional.get();
-                CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> Boolean.TRUE, executorService);
+                ClickStatus status = new ClickStatus(e);
+                List<Integer> slotIndices = new ArrayList<>();
                 for (SlotTransaction slotTransaction : e.getTransactions())
                 {
                     Slot slot = slotTransaction.getSlot();
@@ -359,18 +635,98 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
                     if (slot.parent().equals(targetContainer) && slotToListen.matches(pos))
                     {
                         e.setCancelled(true);
-                        if (actionIntervalManager.allowAction(player, acceptableActionIntervalTick))
-                        {
-                            int index = Objects.requireNonNull(pos.getValue());
-                            future = future.thenCompose(b -> this.runCommand(e, player, index).thenApply(a -> a && b));
-                        }
+                        slotIndices.add(Objects.requireNonNull(pos.getValue()));
                     }
                 }
-                future.thenApply(keepInventoryOpen -> keepInventoryOpen || !plugin.getDispatcher().close(name, player));
+                this.onClick(player, status, slotIndices);
+            }
+        }
+
+        @Override
+        public void onClick(int slotIndex, boolean isShift, boolean isPrimary, boolean isSecondary)
+        {
+            Optional<Player> optional = this.getPlayer();
+            if (optional.isPresent())
+            {
+                ClickStatus status = new ClickStatus(isShift, isPrimary, isSecondary);
+                this.onClick(optional.get(), status, Collections.singletonList(slotIndex));
+            }
+        }
+
+        @Override
+        public void onClose()
+        {
+            Optional<Player> optional = this.getPlayer();
+            if (optional.isPresent())
+            {
+                this.onClose(optional.get(), this.window);
             }
         }
 
-        private CompletableFuture<Boolean> runCommand(ClickInventoryEvent e, Player player, int slotIndex)
+        private void onOpen(Player player, Object target,
+                            Predicate<Player> isOpening, ObjIntConsumer<ItemStackSnapshot> setter)
+        {
+            UUID actionUUID = UUID.randomUUID();
+
+            VirtualChestActions actions = plugin.getVirtualChestActions();
+            ClassToInstanceMap<Context> context = getContextMap(player, actionUUID);
+
+            if (recordManager.filter(name, VirtualChestInventory.this))
+            {
+                recordManager.recordOpen(actionUUID, name, player);
+                logger.debug("Player {} opens the chest GUI", player.getName());
+                actions.submitCommands(player, openActions.getSteps(actions), context, true);
+            }
+            else
+            {
+                actions.submitCommands(player, openActions.getSteps(actions), context, false);
+            }
+
+            if (updateIntervalTick > 0)
+            {
+                Consumer<Player> refresher = p -> updateSlots(name, p, setter, index -> true);
+                plugin.getRefreshScheduler().schedule(name, player, target, isOpening, refresher, updateIntervalTick);
+            }
+
+            plugin.getScriptManager().onOpeningInventory(player);
+
+            renderedSnapshots.remove(player.getUniqueId());
+            updateSlots(name, player, setter, index -> true);
+        }
+
+        private void onClose(Player player, Object target)
+        {
+            plugin.getRefreshScheduler().cancel(player, target);
+
+            UUID actionUUID = UUID.randomUUID();
+            ClassToInstanceMap<Context> context = getContextMap(player, actionUUID);
+            boolean record = recordManager.filter(name, VirtualChestInventory.this);
+            if (record)
+            {
+                recordManager.recordClose(actionUUID, name, player);
+                logger.debug("Player {} closes the chest GUI", player.getName());
+            }
+            VirtualChestActions actions = plugin.getVirtualChestActions();
+            actions.submitCommands(player, closeActions.getSteps(actions), context, record);
+
+            actionIntervalManager.onClosingInventory(player);
+            release(player);
+        }
+
+        private void onClick(Player player, ClickStatus status, List<Integer> slotIndices)
+        {
+            CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> Boolean.TRUE, executorService);
+            for (int index : slotIndices)
+            {
+                if (actionIntervalManager.allowAction(player, acceptableActionIntervalTick))
+                {
+                    future = future.thenCompose(b -> this.runCommand(status, player, index).thenApply(a -> a && b));
+                }
+            }
+            future.thenApply(keepInventoryOpen -> keepInventoryOpen || !plugin.getDispatcher().close(name, player));
+        }
+
+        private CompletableFuture<Boolean> runCommand(ClickStatus status, Player player, int slotIndex)
         {
             CompletableFuture<Boolean> future = new CompletableFuture<>();
             List<VirtualChestItem> items = VirtualChestInventory.this.items.get(slotIndex);
@@ -382,7 +738,6 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
             try (Timing ignored = VirtualChestTimings.updateAndRefreshMapping(name, slotIndex).startTiming())
             {
                 String playerName = player.getName();
-                ClickStatus status = new ClickStatus(e);
                 String keyString = slotIndexToKey(slotIndex);
                 VirtualChestPermissionManager permissionManager = plugin.getPermissionManager();
 
@@ -418,7 +773,9 @@ public final class VirtualChestInventory implements VirtualChest, DataSerializab
                         tuple = optional.get().runCommand(plugin, actionUUID, player, record);
 
                         future.complete(tuple.getFirst());
-                        return tuple.getSecond().thenCompose(r -> permissionManager.clearIgnored(player, actionUUID));
+                        // ignored permissions are cleared even if the commands failed
+                        CompletableFuture<?> commands = tuple.getSecond().handle((r, t) -> r);
+                        return commands.thenCompose(r -> permissionManager.clearIgnored(player, actionUUID));
                     });
                 }
             }
@@ -34,6 +34,8 @@ public class VirtualChestInventoryBuilder extends AbstractDataBuilder<VirtualChe
     List<VirtualChestTriggerItem> triggerItems = new ArrayList<>();
     Multimap<SlotIndex, VirtualChestItem> items = ArrayListMultimap.create();
     Optional<Integer> actionIntervalTick = Optional.empty();
+    int inventoryPoolSize = 0;
+    VirtualChestInventory.Backend backend = VirtualChestInventory.Backend.INVENTORY;
 
     public VirtualChestInventoryBuilder(VirtualChestPlugin plugin)
     {
@@ -83,6 +85,18 @@ public class VirtualChestInventoryBuilder extends AbstractDataBuilder<VirtualChe
         return this;
     }
 
+    public VirtualChestInventoryBuilder inventoryPoolSize(int inventoryPoolSize)
+    {
+        this.inventoryPoolSize = inventoryPoolSize;
+        return this;
+    }
+
+    public VirtualChestInventoryBuilder backend(VirtualChestInventory.Backend backend)
+    {
+        this.backend = backend;
+        return this;
+    }
+
     public VirtualChestInventoryBuilder triggerItem(VirtualChestTriggerItem triggerItem)
     {
         this.triggerItems.add(triggerItem);
@@ -139,6 +153,11 @@ public class VirtualChestInventoryBuilder extends AbstractDataBuilder<VirtualChe
 
         this.actionIntervalTick = view.getInt(VirtualChestInventory.ACCEPTABLE_ACTION_INTERVAL_TICK);
 
+        this.inventoryPoolSize = view.getInt(VirtualChestInventory.INVENTORY_POOL_SIZE).orElse(0);
+
+        this.backend = view.getString(VirtualChestInventory.BACKEND)
+                .map(VirtualChestInventory.Backend::of).orElse(VirtualChestInventory.Backend.INVENTORY);
+
         return Optional.of(new VirtualChestInventory(this.plugin, this));
     }
 
@@ -154,6 +173,8 @@ public class VirtualChestInventoryBuilder extends AbstractDataBuilder<VirtualChe
         this.updateIntervalTick = value.updateIntervalTick;
         this.actionIntervalTick = value.acceptableActionIntervalTick.isPresent()
                 ? Optional.of(value.acceptableActionIntervalTick.getAsInt()) : Optional.empty();
+        this.inventoryPoolSize = value.inventoryPoolSize;
+        this.backend = value.backend;
         this.items.clear();
         for (int i = 0; i < value.items.size(); i++)
         {
@@ -169,6 +190,8 @@ public class VirtualChestInventoryBuilder extends AbstractDataBuilder<VirtualChe
         this.title = Text.of();
         this.updateIntervalTick = 0;
         this.actionIntervalTick = Optional.empty();
+        this.inventoryPoolSize = 0;
+        this.backend = VirtualChestInventory.Backend.INVENTORY;
         this.triggerItems.clear();
         this.items.clear();
         return this;
@@ -4,8 +4,11 @@ import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
 import com.github.ustc_zzzz.virtualchest.api.VirtualChest;
 import com.github.ustc_zzzz.virtualchest.api.VirtualChestService;
 import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import com.github.ustc_zzzz.virtualchest.unsafe.SpongePacketWindow;
 import com.github.ustc_zzzz.virtualchest.unsafe.SpongeUnimplemented;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.reflect.TypeToken;
 import ninja.leaping.configurate.commented.CommentedConfigurationNode;
@@ -19,7 +22,9 @@ import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.impl.AbstractEvent;
 import org.spongepowered.api.item.inventory.Container;
+import org.spongepowered.api.item.inventory.Inventory;
 import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.util.Tuple;
 import org.spongepowered.api.util.annotation.NonnullByDefault;
 
@@ -28,6 +33,10 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
 
 /**
  * @author ustc_zzzz
@@ -42,6 +51,10 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
     private List<String> menuDirs = ImmutableList.of();
     private Map<String, VirtualChest> inventories = new LinkedHashMap<>();
     private Map<UUID, Tuple<String, WeakReference<Container>>> containers = new HashMap<>();
+    private Map<UUID, String> windows = new HashMap<>();
+    private Map<UUID, Invalidation> invalidations = new LinkedHashMap<>();
+    private Deque<PendingOpen> pendingOpens = new ArrayDeque<>();
+    private boolean isPacketBackendWarned = false;
 
     public VirtualChestInventoryDispatcher(VirtualChestPlugin plugin)
     {
@@ -62,7 +75,9 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
     {
         UUID uuid = player.getUniqueId();
         Tuple<String, WeakReference<Container>> tuple = containers.get(uuid);
-        return Optional.ofNullable(tuple).filter(t -> this.isInventoryOpening(player, t)).map(Tuple::getFirst);
+        Optional<String> windowOptional = Optional.ofNullable(windows.get(uuid));
+        return Optional.ofNullable(tuple).filter(t -> this.isInventoryOpening(player, t)).map(Tuple::getFirst)
+                .map(Optional::of).orElseGet(() -> windowOptional.filter(id -> this.isWindowOpening(player, id)));
     }
 
     @Override
@@ -72,9 +87,23 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         if (inventories.containsKey(id))
         {
             Tuple<String, WeakReference<Container>> tuple = containers.get(uuid);
-            if (!Objects.nonNull(tuple) || !this.isInventoryOpening(player, id, tuple))
+            boolean isOpening = Objects.nonNull(tuple) && this.isInventoryOpening(player, id, tuple);
+            if (!isOpening && !this.isWindowOpening(player, id))
             {
-                SpongeUnimplemented.openInventory(player, inventories.get(id).create(id, player), plugin);
+                this.closeWindow(player);
+                VirtualChest chest = inventories.get(id);
+                if (chest instanceof VirtualChestInventory && ((VirtualChestInventory) chest).isPacketBased())
+                {
+                    if (!SpongePacketWindow.isDefaultContainerOpen(player))
+                    {
+                        SpongeUnimplemented.closeInventory(player, plugin);
+                    }
+                    ((VirtualChestInventory) chest).openWindow(id, player);
+                    containers.remove(uuid);
+                    windows.put(uuid, id);
+                    return true;
+                }
+                SpongeUnimplemented.openInventory(player, chest.create(id, player), plugin);
                 Container container = player.getOpenInventory().orElseThrow(IllegalStateException::new);
                 containers.put(uuid, Tuple.of(id, new WeakReference<>(container)));
                 return true;
@@ -83,12 +112,48 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         return false;
     }
 
+    @Override
+    public Map<Player, CompletableFuture<Boolean>> openAll(String id, Collection<Player> players)
+    {
+        boolean isAvailable = inventories.containsKey(id);
+        Map<UUID, CompletableFuture<Boolean>> queued = new HashMap<>();
+        Map<Player, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        if (isAvailable && pendingOpens.isEmpty() && !players.isEmpty())
+        {
+            Task.builder().name("VirtualChestBulkOpen").intervalTicks(1).execute(this::openPending).submit(plugin);
+        }
+        for (Player player : players)
+        {
+            // duplicate players share the same future and are only queued once
+            CompletableFuture<Boolean> future = queued.get(player.getUniqueId());
+            if (Objects.isNull(future))
+            {
+                future = new CompletableFuture<>();
+                if (isAvailable)
+                {
+                    pendingOpens.add(new PendingOpen(id, player, future));
+                }
+                else
+                {
+                    future.complete(false);
+                }
+                queued.put(player.getUniqueId(), future);
+            }
+            futures.put(player, future);
+        }
+        return Collections.unmodifiableMap(futures);
+    }
+
     @Override
     public boolean close(String id, Player player)
     {
         UUID uuid = player.getUniqueId();
         if (inventories.containsKey(id))
         {
+            if (this.isWindowOpening(player, id))
+            {
+                return this.closeWindow(player);
+            }
             Tuple<String, WeakReference<Container>> tuple = containers.remove(uuid);
             if (!Objects.isNull(tuple) && this.isInventoryOpening(player, id, tuple))
             {
@@ -99,12 +164,92 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         return false;
     }
 
+    @Override
+    public boolean invalidate(String id, Player player, int slotIndex)
+    {
+        UUID uuid = player.getUniqueId();
+        if (inventories.containsKey(id))
+        {
+            Tuple<String, WeakReference<Container>> tuple = containers.get(uuid);
+            boolean isOpening = !Objects.isNull(tuple) && this.isInventoryOpening(player, id, tuple);
+            if (isOpening || this.isWindowOpening(player, id))
+            {
+                this.getInvalidation(uuid, id).slotIndices.add(slotIndex);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean invalidatePlaceholder(String placeholderKey, Player player)
+    {
+        UUID uuid = player.getUniqueId();
+        this.plugin.getPlaceholderManager().getCache().evict(placeholderKey, player);
+        Optional<String> idOptional = this.lookup(player).filter(inventories::containsKey);
+        if (idOptional.isPresent())
+        {
+            String id = idOptional.get();
+            VirtualChest chest = inventories.get(id);
+            if (chest instanceof VirtualChestInventory)
+            {
+                Set<Integer> slotIndices = ((VirtualChestInventory) chest).getSlotsDependingOn(placeholderKey);
+                if (slotIndices.isEmpty())
+                {
+                    // the placeholder may still be used, for example, by papi calls in requirement scripts
+                    this.getInvalidation(uuid, id).isWhole = true;
+                }
+                else
+                {
+                    this.getInvalidation(uuid, id).slotIndices.addAll(slotIndices);
+                }
+            }
+            else
+            {
+                this.getInvalidation(uuid, id).isWhole = true;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void invalidatePlaceholder(String placeholderKey)
+    {
+        for (UUID uuid : ImmutableSet.copyOf(Iterables.concat(containers.keySet(), windows.keySet())))
+        {
+            Sponge.getServer().getPlayer(uuid).ifPresent(player -> this.invalidatePlaceholder(placeholderKey, player));
+        }
+    }
+
+    public void release(Player player)
+    {
+        UUID uuid = player.getUniqueId();
+        windows.remove(uuid);
+        containers.remove(uuid);
+        invalidations.remove(uuid);
+        this.plugin.getPlaceholderManager().getCache().evict(player);
+        this.plugin.getScriptManager().release(player);
+        for (VirtualChest chest : inventories.values())
+        {
+            if (chest instanceof VirtualChestInventory)
+            {
+                ((VirtualChestInventory) chest).release(player);
+            }
+        }
+    }
+
     public boolean update(String id, Player player)
     {
         UUID uuid = player.getUniqueId();
 
         if (inventories.containsKey(id))
         {
+            if (this.isWindowOpening(player, id))
+            {
+                ((VirtualChestInventory) inventories.get(id)).updateWindow(id, player, index -> true);
+                return true;
+            }
             Tuple<String, WeakReference<Container>> tuple = containers.get(uuid);
             if (!Objects.isNull(tuple) && this.isInventoryOpening(player, id, tuple))
             {
@@ -135,7 +280,10 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
             Path configDir = plugin.getConfigDir();
             Map<String, VirtualChestInventory> newOnes = new LinkedHashMap<>();
             this.menuDirs = ImmutableList.copyOf(node.getList(TypeToken.of(String.class), this::releaseExample));
+            this.plugin.getScriptManager().beginPreparation();
             this.menuDirs.stream().map(configDir::resolve).forEach(p -> newOnes.putAll(this.scanDir(p.toFile())));
+            this.plugin.getScriptManager().endPreparation();
+            this.warnUnsupportedPacketBackend(newOnes);
             this.updateInventories(newOnes);
             this.fireLoadEvent();
         }
@@ -189,6 +337,25 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         return openInventory.isPresent() && container.equals(openInventory.get());
     }
 
+    private boolean isWindowOpening(Player player, String id)
+    {
+        VirtualChest chest = inventories.get(id);
+        boolean isWindowMarked = id.equals(windows.get(player.getUniqueId())) && chest instanceof VirtualChestInventory;
+        return isWindowMarked && ((VirtualChestInventory) chest).isWindowOpening(player);
+    }
+
+    private boolean closeWindow(Player player)
+    {
+        String id = windows.remove(player.getUniqueId());
+        VirtualChest chest = Objects.isNull(id) ? null : inventories.get(id);
+        if (chest instanceof VirtualChestInventory && ((VirtualChestInventory) chest).isWindowOpening(player))
+        {
+            ((VirtualChestInventory) chest).closeWindow(player);
+            return true;
+        }
+        return false;
+    }
+
     private boolean isInventoryOpening(Player player, Tuple<String, WeakReference<Container>> tuple)
     {
         Container container = tuple.getSecond().get();
@@ -201,11 +368,108 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         return id.equals(first) && this.isInventoryOpening(player, tuple);
     }
 
+    private void openPending(Task task)
+    {
+        boolean isOpened = false;
+        long start = System.nanoTime();
+        long budget = this.plugin.getRefreshScheduler().getTickBudgetNanos();
+        // at least one chest GUI is opened in a tick, or the rest may be never opened
+        while (!pendingOpens.isEmpty() && (!isOpened || budget <= 0 || System.nanoTime() - start < budget))
+        {
+            PendingOpen pendingOpen = pendingOpens.poll();
+            try
+            {
+                boolean isOnline = pendingOpen.player.isOnline();
+                pendingOpen.future.complete(isOnline && this.open(pendingOpen.id, pendingOpen.player));
+            }
+            catch (Exception e)
+            {
+                pendingOpen.future.completeExceptionally(e);
+            }
+            isOpened = true;
+        }
+        if (pendingOpens.isEmpty())
+        {
+            task.cancel();
+        }
+    }
+
+    private Invalidation getInvalidation(UUID uuid, String id)
+    {
+        if (invalidations.isEmpty())
+        {
+            Task.builder().name("VirtualChestInvalidation").execute(this::updateInvalidations).submit(plugin);
+        }
+        Invalidation invalidation = invalidations.get(uuid);
+        if (Objects.isNull(invalidation) || !id.equals(invalidation.id))
+        {
+            invalidation = new Invalidation(id);
+            invalidations.put(uuid, invalidation);
+        }
+        return invalidation;
+    }
+
+    private void updateInvalidations()
+    {
+        Map<UUID, Invalidation> invalidationMap = new LinkedHashMap<>(invalidations);
+        invalidations.clear();
+        invalidationMap.forEach((uuid, invalidation) ->
+        {
+            String id = invalidation.id;
+            VirtualChest chest = inventories.get(id);
+            Tuple<String, WeakReference<Container>> tuple = containers.get(uuid);
+            Optional<Player> playerOptional = Sponge.getServer().getPlayer(uuid);
+            if (playerOptional.isPresent() && this.isWindowOpening(playerOptional.get(), id))
+            {
+                Set<Integer> slotIndices = invalidation.slotIndices;
+                IntPredicate filter = invalidation.isWhole ? index -> true : slotIndices::contains;
+                ((VirtualChestInventory) chest).updateWindow(id, playerOptional.get(), filter);
+            }
+            else if (playerOptional.isPresent() && Objects.nonNull(chest) && Objects.nonNull(tuple))
+            {
+                Player player = playerOptional.get();
+                if (this.isInventoryOpening(player, id, tuple))
+                {
+                    Consumer<Inventory> updater = invalidation.isWhole
+                            ? chest.getUpdaterFor(id, player)
+                            : chest.getUpdaterFor(id, player, invalidation.slotIndices);
+                    try
+                    {
+                        // noinspection ConstantConditions
+                        updater.accept(tuple.getSecond().get().first());
+                    }
+                    catch (Exception e)
+                    {
+                        String message = "Find error when updating the invalidated chest GUI for player ";
+                        this.logger.error(message + player.getName(), e);
+                    }
+                }
+            }
+        });
+    }
+
     private void fireLoadEvent()
     {
         Sponge.getEventManager().post(new LoadEvent());
     }
 
+    private void warnUnsupportedPacketBackend(Map<String, VirtualChestInventory> newInventories)
+    {
+        if (!this.isPacketBackendWarned)
+        {
+            List<String> names = newInventories.entrySet().stream()
+                    .filter(e -> e.getValue().isPacketBackendUnsupported()).map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+            if (!names.isEmpty())
+            {
+                this.isPacketBackendWarned = true;
+                Throwable cause = SpongePacketWindow.getUnsupportedCause().orElse(null);
+                this.logger.warn("Packet windows are not supported by the server, chest GUI(s) " +
+                        "{} fall back to the inventory backend", names, cause);
+            }
+        }
+    }
+
     private void updateInventories(Map<String, VirtualChestInventory> newInventories)
     {
         inventories.clear();
@@ -241,6 +505,33 @@ public class VirtualChestInventoryDispatcher implements VirtualChestService
         return newInventories;
     }
 
+    private static final class PendingOpen
+    {
+        private final String id;
+        private final Player player;
+        private final CompletableFuture<Boolean> future;
+
+        private PendingOpen(String id, Player player, CompletableFuture<Boolean> future)
+        {
+            this.id = id;
+            this.player = player;
+            this.future = future;
+        }
+    }
+
+    private static final class Invalidation
+    {
+        private final String id;
+        private final Set<Integer> slotIndices = new HashSet<>();
+
+        private boolean isWhole = false;
+
+        private Invalidation(String id)
+        {
+            this.id = id;
+        }
+    }
+
     private class LoadEvent extends AbstractEvent implements VirtualChest.LoadEvent
     {
         @Override
@@ -0,0 +1,197 @@
+package com.github.ustc_zzzz.virtualchest.inventory;
+
+import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
+import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import com.google.common.collect.ImmutableMap;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scheduler.Task;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A tick wheel which drives the periodic refreshes of all the open chest GUIs by one task. The
+ * refreshes are spread over the interval, and those which do not fit in the time budget of a tick
+ * are deferred to the next tick.
+ *
+ * @author ustc_zzzz
+ */
+public class VirtualChestRefreshScheduler
+{
+    private static final int WHEEL_SIZE = 64; // should be a power of two
+    private static final String TASK_NAME = "VirtualChestRefreshScheduler";
+    private static final double DEFAULT_TICK_BUDGET_MILLIS = 2.0;
+
+    private final Logger logger;
+    private final VirtualChestTranslation translation;
+
+    private final Deque<Session> deferred = new ArrayDeque<>();
+    private final Map<UUID, Session> sessions = new HashMap<>();
+    private final Map<String, Long> deferralCounts = new TreeMap<>();
+    private final List<List<Session>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    private long currentTick = 0;
+    private long scheduledCount = 0;
+    private double tickBudgetMillis = DEFAULT_TICK_BUDGET_MILLIS;
+
+    public VirtualChestRefreshScheduler(VirtualChestPlugin plugin)
+    {
+        this.logger = plugin.getLogger();
+        this.translation = plugin.getTranslation();
+        for (int i = 0; i < WHEEL_SIZE; ++i)
+        {
+            this.wheel.add(new LinkedList<>());
+        }
+
+        Task.builder().intervalTicks(1).name(TASK_NAME).execute(this::tick).submit(plugin);
+    }
+
+    public void schedule(String name, Player player, Object target,
+                         Predicate<Player> isOpening, Consumer<Player> refresher, int interval)
+    {
+        UUID uuid = player.getUniqueId();
+        Session session = new Session(name, uuid, target, isOpening, refresher, interval);
+        Optional.ofNullable(this.sessions.put(uuid, session)).ifPresent(Session::cancel);
+        // spread the sessions opened at the same time over the interval
+        this.enqueue(session, this.currentTick + 1 + this.scheduledCount++ % interval);
+    }
+
+    public void cancel(Player player, Object target)
+    {
+        UUID uuid = player.getUniqueId();
+        Session session = this.sessions.get(uuid);
+        if (Objects.nonNull(session) && session.target.equals(target))
+        {
+            this.sessions.remove(uuid).cancel();
+        }
+    }
+
+    public int getSessionCount()
+    {
+        return this.sessions.size();
+    }
+
+    public long getTickBudgetNanos()
+    {
+        return (long) (TimeUnit.MILLISECONDS.toNanos(1) * this.tickBudgetMillis);
+    }
+
+    public Map<String, Long> getDeferralCounts()
+    {
+        return ImmutableMap.copyOf(this.deferralCounts);
+    }
+
+    public void loadConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.tickBudgetMillis = Math.max(0, node.getDouble(DEFAULT_TICK_BUDGET_MILLIS));
+        this.deferralCounts.clear();
+    }
+
+    public void saveConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.translation.withComment(node, "virtualchest.config.rendering.tickBudgetMillis.comment")
+                .setValue(this.tickBudgetMillis);
+    }
+
+    private void enqueue(Session session, long dueTick)
+    {
+        session.dueTick = dueTick;
+        this.wheel.get((int) (dueTick & (WHEEL_SIZE - 1))).add(session);
+    }
+
+    private void tick(Task task)
+    {
+        long now = ++this.currentTick;
+        List<Session> due = new ArrayList<>(this.deferred);
+        this.deferred.clear();
+        Iterator<Session> iterator = this.wheel.get((int) (now & (WHEEL_SIZE - 1))).iterator();
+        while (iterator.hasNext())
+        {
+            Session session = iterator.next();
+            if (session.isCancelled)
+            {
+                iterator.remove();
+            }
+            else if (session.dueTick <= now)
+            {
+                iterator.remove();
+                due.add(session);
+            }
+        }
+        long budget = this.getTickBudgetNanos();
+        long start = System.nanoTime();
+        boolean isRefreshed = false;
+        for (Session session : due)
+        {
+            if (session.isCancelled)
+            {
+                continue;
+            }
+            // at least one session is refreshed in a tick, or some sessions may be starved
+            if (isRefreshed && budget > 0 && System.nanoTime() - start >= budget)
+            {
+                this.deferralCounts.merge(session.name, 1L, Long::sum);
+                this.deferred.add(session);
+                continue;
+            }
+            this.refresh(session, now);
+            isRefreshed = true;
+        }
+    }
+
+    private void refresh(Session session, long now)
+    {
+        Optional<Player> playerOptional = Sponge.getServer().getPlayer(session.playerUniqueId);
+        if (!playerOptional.isPresent() || !session.isOpening.test(playerOptional.get()))
+        {
+            this.sessions.remove(session.playerUniqueId, session);
+            session.cancel();
+            return;
+        }
+        try
+        {
+            session.refresher.accept(playerOptional.get());
+        }
+        catch (Exception e)
+        {
+            String playerName = playerOptional.get().getName();
+            this.logger.error("Find error when refreshing the chest GUI for player " + playerName, e);
+        }
+        this.enqueue(session, now + session.intervalTick);
+    }
+
+    private static final class Session
+    {
+        private final String name;
+        private final UUID playerUniqueId;
+        private final Object target;
+        private final Predicate<Player> isOpening;
+        private final Consumer<Player> refresher;
+        private final int intervalTick;
+
+        private long dueTick;
+        private boolean isCancelled = false;
+
+        private Session(String name, UUID playerUniqueId, Object target,
+                        Predicate<Player> isOpening, Consumer<Player> refresher, int intervalTick)
+        {
+            this.name = name;
+            this.playerUniqueId = playerUniqueId;
+            this.target = target;
+            this.isOpening = isOpening;
+            this.refresher = refresher;
+            this.intervalTick = intervalTick;
+        }
+
+        private void cancel()
+        {
+            this.isCancelled = true;
+        }
+    }
+}
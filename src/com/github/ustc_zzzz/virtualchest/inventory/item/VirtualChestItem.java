@@ -7,18 +7,20 @@ import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventory;
 import com.github.ustc_zzzz.virtualchest.timings.VirtualChestTimings;
 import com.github.ustc_zzzz.virtualchest.unsafe.SpongeUnimplemented;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.spongepowered.api.data.DataContainer;
 import org.spongepowered.api.data.DataQuery;
 import org.spongepowered.api.data.DataView;
 import org.spongepowered.api.data.persistence.InvalidDataException;
 import org.spongepowered.api.entity.living.player.Player;
-import org.spongepowered.api.item.inventory.Inventory;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
 import org.spongepowered.api.util.Tuple;
 
 import javax.script.CompiledScript;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * @author ustc_zzzz
@@ -36,15 +38,17 @@ public class VirtualChestItem
     public static final DataQuery SECONDARY_SHIFT_ACTION = DataQuery.of("SecondaryShiftAction");
 
     private final VirtualChestPlugin plugin;
-    private final VirtualChestItemStackSerializer serializer;
 
     private final DataView serializedStack;
+    private final VirtualChestItemStackTemplate template;
     private final List<String> ignoredPermissions;
     private final Tuple<String, CompiledScript> requirements;
     private final VirtualChestActionDispatcher primaryAction;
     private final VirtualChestActionDispatcher secondaryAction;
     private final VirtualChestActionDispatcher primaryShiftAction;
     private final VirtualChestActionDispatcher secondaryShiftAction;
+    private final boolean isStatic;
+    private final Set<String> placeholderKeys;
 
     public static DataContainer serialize(VirtualChestPlugin plugin, VirtualChestItem item) throws InvalidDataException
     {
@@ -82,10 +86,10 @@ public class VirtualChestItem
         List<DataView> primaryShiftListFinal = primaryShiftList.isEmpty() ? primaryListFinal : primaryShiftList;
         List<DataView> secondaryShiftListFinal = secondaryShiftList.isEmpty() ? secondaryListFinal : secondaryShiftList;
 
-        VirtualChestActionDispatcher primaryAction = new VirtualChestActionDispatcher(primaryListFinal);
-        VirtualChestActionDispatcher secondaryAction = new VirtualChestActionDispatcher(secondaryListFinal);
-        VirtualChestActionDispatcher primaryShiftAction = new VirtualChestActionDispatcher(primaryShiftListFinal);
-        VirtualChestActionDispatcher secondaryShiftAction = new VirtualChestActionDispatcher(secondaryShiftListFinal);
+        VirtualChestActionDispatcher primaryAction = new VirtualChestActionDispatcher(plugin, primaryListFinal);
+        VirtualChestActionDispatcher secondaryAction = new VirtualChestActionDispatcher(plugin, secondaryListFinal);
+        VirtualChestActionDispatcher primaryShiftAction = new VirtualChestActionDispatcher(plugin, primaryShiftListFinal);
+        VirtualChestActionDispatcher secondaryShiftAction = new VirtualChestActionDispatcher(plugin, secondaryShiftListFinal);
 
         return new VirtualChestItem(plugin, serializedStack, requirements,
                 primaryAction, secondaryAction, primaryShiftAction, secondaryShiftAction, ignoredPermissions);
@@ -102,15 +106,19 @@ public class VirtualChestItem
             List<String> ignoredPermissions)
     {
         this.plugin = plugin;
-        this.serializer = new VirtualChestItemStackSerializer(plugin);
 
         this.serializedStack = serializedStack;
+        this.template = new VirtualChestItemStackSerializer(plugin).compile(serializedStack);
         this.requirements = requirements;
         this.primaryAction = primaryAction;
         this.secondaryAction = secondaryAction;
         this.primaryShiftAction = primaryShiftAction;
         this.secondaryShiftAction = secondaryShiftAction;
         this.ignoredPermissions = ignoredPermissions;
+        // neither requirements nor placeholders, so the rendered item is the same for all the players
+        this.isStatic = plugin.getScriptManager().isAlwaysTrue(requirements) && this.template.getHoleCount() == 0;
+        this.placeholderKeys = ImmutableSet.<String>builder().addAll(this.template.getPlaceholderKeys())
+                .addAll(plugin.getPlaceholderManager().getPlaceholderKeys(requirements.getFirst())).build();
     }
 
     public static List<DataView> getViewListOrSingletonList(DataQuery key, DataView view)
@@ -129,11 +137,12 @@ public class VirtualChestItem
         return builder.build();
     }
 
-    public void fillInventory(Player player, Inventory inventory, int index, String name)
+    public Tuple<ItemStackSnapshot, Boolean> render(Player player, int index, String name)
     {
         try (Timing ignored = VirtualChestTimings.setItemInInventory(name, index).startTiming())
         {
-            inventory.set(this.serializer.apply(player, this.serializedStack));
+            String[] values = this.template.resolve(player, this.plugin.getPlaceholderManager());
+            return this.plugin.getItemStackCache().get(this.template, values);
         }
         catch (InvalidDataException e)
         {
@@ -142,11 +151,26 @@ public class VirtualChestItem
         }
     }
 
+    public boolean isStatic()
+    {
+        return this.isStatic;
+    }
+
+    public Set<String> getPlaceholderKeys()
+    {
+        return this.placeholderKeys;
+    }
+
+    public Tuple<String, CompiledScript> getRequirements()
+    {
+        return this.requirements;
+    }
+
     public boolean matchRequirements(Player player, int index, String name)
     {
         try (Timing ignored = VirtualChestTimings.checkRequirements(name, index).startTiming())
         {
-            return this.plugin.getScriptManager().execute(player, this.requirements);
+            return this.plugin.getScriptManager().execute(player, this.requirements, name, index);
         }
     }
 
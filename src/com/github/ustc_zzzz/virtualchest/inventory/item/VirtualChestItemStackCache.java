@@ -0,0 +1,113 @@
+package com.github.ustc_zzzz.virtualchest.inventory.item;
+
+import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
+import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import org.spongepowered.api.data.persistence.InvalidDataException;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.util.Tuple;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author ustc_zzzz
+ */
+public class VirtualChestItemStackCache
+{
+    private static final int DEFAULT_MAXIMUM_SIZE = 4096;
+
+    private final VirtualChestTranslation translation;
+
+    private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private Cache<Entry, ItemStackSnapshot> cache = createCache(DEFAULT_MAXIMUM_SIZE);
+
+    public VirtualChestItemStackCache(VirtualChestPlugin plugin)
+    {
+        this.translation = plugin.getTranslation();
+    }
+
+    private static Cache<Entry, ItemStackSnapshot> createCache(int maximumSize)
+    {
+        return CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    public Tuple<ItemStackSnapshot, Boolean> get(VirtualChestItemStackTemplate template, String[] values)
+            throws InvalidDataException
+    {
+        Entry entry = new Entry(template, values);
+        ItemStackSnapshot snapshot = this.cache.getIfPresent(entry);
+        if (snapshot == null)
+        {
+            Tuple<ItemStack, Boolean> built = template.build(values);
+            snapshot = built.getFirst().createSnapshot();
+            if (!built.getSecond())
+            {
+                return Tuple.of(snapshot, false); // not cached so that it will be built again next time
+            }
+            this.cache.put(entry, snapshot);
+        }
+        return Tuple.of(snapshot, true);
+    }
+
+    public CacheStats getStats()
+    {
+        return this.cache.stats();
+    }
+
+    public long getSize()
+    {
+        return this.cache.size();
+    }
+
+    public void loadConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.maximumSize = Math.max(0, node.getInt(DEFAULT_MAXIMUM_SIZE));
+        this.cache = createCache(this.maximumSize);
+    }
+
+    public void saveConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.translation.withComment(node, "virtualchest.config.rendering.itemStackCacheSize.comment")
+                .setValue(this.maximumSize);
+    }
+
+    private static final class Entry
+    {
+        private final VirtualChestItemStackTemplate template;
+        private final String[] values;
+        private final int hashCode;
+
+        private Entry(VirtualChestItemStackTemplate template, String[] values)
+        {
+            this.template = template;
+            this.values = values;
+            this.hashCode = 31 * System.identityHashCode(template) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object that)
+        {
+            if (this == that)
+            {
+                return true;
+            }
+            if (that == null || this.getClass() != that.getClass())
+            {
+                return false;
+            }
+            Entry entry = (Entry) that;
+            return this.template == entry.template && Arrays.equals(this.values, entry.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+    }
+}
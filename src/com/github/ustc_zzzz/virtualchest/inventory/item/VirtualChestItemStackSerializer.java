@@ -1,8 +1,7 @@
 package com.github.ustc_zzzz.virtualchest.inventory.item;
 
-import co.aikar.timings.Timing;
 import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
-import com.github.ustc_zzzz.virtualchest.timings.VirtualChestTimings;
+import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
 import com.github.ustc_zzzz.virtualchest.unsafe.SpongeUnimplemented;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.TypeToken;
@@ -14,9 +13,9 @@ import ninja.leaping.configurate.objectmapping.ObjectMappingException;
 import ninja.leaping.configurate.objectmapping.serialize.TypeSerializer;
 import ninja.leaping.configurate.objectmapping.serialize.TypeSerializerCollection;
 import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
+import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.data.DataQuery;
-import org.spongepowered.api.data.DataTransactionResult;
 import org.spongepowered.api.data.DataView;
 import org.spongepowered.api.data.Queries;
 import org.spongepowered.api.data.key.Key;
@@ -24,8 +23,6 @@ import org.spongepowered.api.data.key.Keys;
 import org.spongepowered.api.data.manipulator.mutable.RepresentedPlayerData;
 import org.spongepowered.api.data.persistence.InvalidDataException;
 import org.spongepowered.api.data.type.SkullTypes;
-import org.spongepowered.api.data.value.BaseValue;
-import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.item.ItemTypes;
 import org.spongepowered.api.item.inventory.ItemStack;
 import org.spongepowered.api.profile.GameProfile;
@@ -38,13 +35,11 @@ import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.BiConsumer;
-import java.util.function.BiFunction;
 
 /**
  * @author ustc_zzzz
  */
-public class VirtualChestItemStackSerializer implements BiFunction<Player, DataView, ItemStack>
+public class VirtualChestItemStackSerializer
 {
     private static final Set<DataQuery> EXCEPTIONS;
     private static final TextSerializer TEXT_SERIALIZER = new TextSerializer();
@@ -87,144 +82,88 @@ public class VirtualChestItemStackSerializer implements BiFunction<Player, DataV
                 .registerType(TypeToken.of(GameProfile.class), GAME_PROFILE_SERIALIZER);
     }
 
-    private <T, U extends BaseValue<T>> void deserializeForKeys(
-            ConfigurationNode node, DataQuery dataQuery, BiConsumer<Key<U>, T> consumer) throws InvalidDataException
+    VirtualChestItemStackTemplate compile(DataView view) throws InvalidDataException
     {
-        if (KEYS.containsKey(dataQuery))
-        {
-            try
-            {
-                @SuppressWarnings("unchecked")
-                Key<U> key = (Key<U>) KEYS.get(dataQuery);
-                @SuppressWarnings("unchecked")
-                TypeToken<T> elementToken = (TypeToken<T>) key.getElementToken();
-                consumer.accept(key, Optional.ofNullable(node.getValue(elementToken))
-                        .orElseThrow(() -> new InvalidDataException("No value present")));
-            }
-            catch (ObjectMappingException e)
-            {
-                throw new InvalidDataException(e);
-            }
-        }
-        else if (!EXCEPTIONS.contains(dataQuery))
-        {
-            throw new InvalidDataException("No matched query present");
-        }
-    }
-
-    private ConfigurationNode convertToConfigurationNode(DataView view)
-    {
-        ConfigurationOptions configurationOptions = ConfigurationOptions.defaults().setSerializers(this.serializers);
+        VirtualChestItemStackTemplate.Builder builder = VirtualChestItemStackTemplate.builder();
+        VirtualChestPlaceholderManager placeholderManager = this.plugin.getPlaceholderManager();
+        Map<Object, VirtualChestItemStackTemplate.Node> base = new LinkedHashMap<>();
         Map<?, ?> values = view.getMap(DataQuery.of()).orElseThrow(InvalidDataException::new);
-        return SimpleConfigurationNode.root(configurationOptions).setValue(values);
-    }
-
-    private ConfigurationNode applyPlaceholders(Player player, ConfigurationNode node)
-    {
-        if (node.hasListChildren())
+        Map<Object, ? extends ConfigurationNode> children = this.toConfigurationNode(values).getChildrenMap();
+        for (Map.Entry<Object, ? extends ConfigurationNode> entry : children.entrySet())
         {
-            for (ConfigurationNode child : node.getChildrenList())
+            String name = entry.getKey().toString();
+            DataQuery dataQuery = DataQuery.of(name);
+            VirtualChestItemStackTemplate.Node node = builder.compile(entry.getValue(), placeholderManager);
+            if (EXCEPTIONS.contains(dataQuery))
             {
-                this.applyPlaceholders(player, child);
+                base.put(entry.getKey(), node);
             }
-        }
-        else if (node.hasMapChildren())
-        {
-            for (ConfigurationNode child : node.getChildrenMap().values())
+            if (KEYS.containsKey(dataQuery))
             {
-                this.applyPlaceholders(player, child);
+                builder.applier(name, KEYS.get(dataQuery), node);
             }
-        }
-        else
-        {
-            String value = node.getString("");
-            String newValue = this.plugin.getPlaceholderManager().parseText(player, value);
-            if (!value.equals(newValue))
+            else if (!EXCEPTIONS.contains(dataQuery))
             {
-                node.setValue(newValue);
+                String message = "Cannot apply field '" + name + "' to the item, ignore it.";
+                this.plugin.getLogger().warn(message, new InvalidDataException("No matched query present"));
             }
         }
-        return node;
+        return builder.base(base).build(this);
     }
 
-    @Override
-    public ItemStack apply(Player player, DataView view) throws InvalidDataException
+    Logger getLogger()
     {
-        return this.deserializeItemFrom(this.applyPlaceholders(player, view));
+        return this.plugin.getLogger();
     }
 
-    private ConfigurationNode applyPlaceholders(Player player, DataView view)
+    ConfigurationNode toConfigurationNode(Object value)
     {
-        try (Timing ignored = VirtualChestTimings.applyPlaceholders().startTiming())
-        {
-            return this.applyPlaceholders(player, this.convertToConfigurationNode(view));
-        }
-        catch (InvalidDataException e)
+        ConfigurationOptions configurationOptions = ConfigurationOptions.defaults().setSerializers(this.serializers);
+        return SimpleConfigurationNode.root(configurationOptions).setValue(value);
+    }
+
+    Object deserializeValue(Key<?> key, Object value) throws InvalidDataException
+    {
+        try
         {
-            throw e;
+            TypeToken<?> elementToken = key.getElementToken();
+            return Optional.ofNullable(this.toConfigurationNode(value).getValue(elementToken))
+                    .orElseThrow(() -> new InvalidDataException("No value present"));
         }
-        catch (Exception e)
+        catch (ObjectMappingException e)
         {
             throw new InvalidDataException(e);
         }
     }
 
-    private ItemStack deserializeItemFrom(ConfigurationNode node)
+    boolean isByteItem(ConfigurationNode node)
     {
-        try (Timing ignored = VirtualChestTimings.deserializeItem().startTiming())
-        {
-            ItemStack stack;
+        Object byteItems = this.plugin.getByteItemsService();
+        String itemTypeString = node.getNode("ItemType").getString("");
+        return byteItems != null && itemTypeString.startsWith(((ByteItemsService) byteItems).getPrefix());
+    }
 
-            Object byteItems = plugin.getByteItemsService();
+    ItemStack deserializeBase(ConfigurationNode node) throws ObjectMappingException
+    {
+        if (this.isByteItem(node))
+        {
+            Object byteItems = this.plugin.getByteItemsService();
             String itemTypeString = node.getNode("ItemType").getString("");
 
-            if (byteItems != null && itemTypeString.startsWith(((ByteItemsService) byteItems).getPrefix()))
-            {
-                stack = ((ByteItemsService) byteItems)
-                        .get(itemTypeString)
-                        .orElseThrow(() -> new IllegalArgumentException("Cannot find ByteItem '" + itemTypeString + "'!"))
-                        .createStack();
+            ItemStack stack = ((ByteItemsService) byteItems)
+                    .get(itemTypeString)
+                    .orElseThrow(() -> new IllegalArgumentException("Cannot find ByteItem '" + itemTypeString + "'!"))
+                    .createStack();
 
-                int count = node.getNode("Count").getInt(0);
-                // if an explicit quantity is given, overwrite the quantity ByteItems gave us
-                if (count > 1)
-                {
-                    stack.setQuantity(count);
-                }
-            }
-            else
+            int count = node.getNode("Count").getInt(0);
+            // if an explicit quantity is given, overwrite the quantity ByteItems gave us
+            if (count > 1)
             {
-                stack = Objects.requireNonNull(node.getValue(TypeToken.of(ItemStack.class)));
-            }
-            for (Map.Entry<Object, ? extends ConfigurationNode> entry : node.getChildrenMap().entrySet())
-            {
-                try
-                {
-                    this.deserializeForKeys(entry.getValue(), DataQuery.of(entry.getKey().toString()), (key, data) ->
-                    {
-                        DataTransactionResult result = stack.offer(key, data);
-                        if (!result.isSuccessful())
-                        {
-                            throw new InvalidDataException();
-                        }
-                    });
-                }
-                catch (InvalidDataException e)
-                {
-                    String message = "Cannot apply field '" + entry.getKey() + "' to the item, ignore it.";
-                    this.plugin.getLogger().warn(message, e);
-                }
+                stack.setQuantity(count);
             }
             return stack;
         }
-        catch (InvalidDataException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            throw new InvalidDataException(e);
-        }
+        return Objects.requireNonNull(node.getValue(TypeToken.of(ItemStack.class)));
     }
 
     private static final class TextSerializer implements TypeSerializer<Text>
@@ -0,0 +1,357 @@
+package com.github.ustc_zzzz.virtualchest.inventory.item;
+
+import co.aikar.timings.Timing;
+import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
+import com.github.ustc_zzzz.virtualchest.timings.VirtualChestTimings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import org.spongepowered.api.data.DataTransactionResult;
+import org.spongepowered.api.data.key.Key;
+import org.spongepowered.api.data.persistence.InvalidDataException;
+import org.spongepowered.api.data.value.BaseValue;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.profile.GameProfile;
+import org.spongepowered.api.text.TextTemplate;
+import org.spongepowered.api.util.Tuple;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * An item tree compiled from the serialized item at loading time. Every string which contains
+ * placeholders is a hole, and a render only fills the holes and offers the values. The tree itself
+ * never changes, while the constant parts are deserialized at the first render and then cached in
+ * volatile fields, since templates are shared between renders of different threads.
+ *
+ * @author ustc_zzzz
+ */
+public final class VirtualChestItemStackTemplate
+{
+    private final VirtualChestItemStackSerializer serializer;
+
+    private final Node base;
+    private final ImmutableList<TextTemplate> holes;
+    private final ImmutableList<KeyApplier> appliers;
+
+    @Nullable
+    private volatile ItemStackSnapshot baseSnapshot = null;
+
+    private VirtualChestItemStackTemplate(VirtualChestItemStackSerializer serializer, Builder builder)
+    {
+        this.serializer = serializer;
+        this.base = builder.base;
+        this.holes = builder.holes.build();
+        this.appliers = builder.appliers.build();
+    }
+
+    static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public int getHoleCount()
+    {
+        return this.holes.size();
+    }
+
+    public Set<String> getPlaceholderKeys()
+    {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        this.holes.forEach(hole -> builder.addAll(hole.getArguments().keySet()));
+        return builder.build();
+    }
+
+    public String[] resolve(Player player, VirtualChestPlaceholderManager placeholderManager)
+    {
+        try (Timing ignored = VirtualChestTimings.applyPlaceholders().startTiming())
+        {
+            String[] values = new String[this.holes.size()];
+            for (int i = 0; i < values.length; ++i)
+            {
+                values[i] = placeholderManager.parseText(player, this.holes.get(i));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Builds the item with the resolved values of holes. The second element of the result tells if
+     * the item could be reused for the same values, which is false if an unfilled game profile is
+     * produced, since it should be looked up again at the next render.
+     */
+    public Tuple<ItemStack, Boolean> build(String[] values) throws InvalidDataException
+    {
+        try (Timing ignored = VirtualChestTimings.deserializeItem().startTiming())
+        {
+            boolean isCacheable = true;
+            ItemStack stack = this.buildBase(values);
+            for (KeyApplier applier : this.appliers)
+            {
+                try
+                {
+                    isCacheable = applier.apply(this.serializer, stack, values) && isCacheable;
+                }
+                catch (InvalidDataException e)
+                {
+                    String message = "Cannot apply field '" + applier.name + "' to the item, ignore it.";
+                    this.serializer.getLogger().warn(message, e);
+                }
+            }
+            return Tuple.of(stack, isCacheable);
+        }
+        catch (InvalidDataException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new InvalidDataException(e);
+        }
+    }
+
+    private ItemStack buildBase(String[] values) throws ObjectMappingException
+    {
+        ItemStackSnapshot snapshot = this.baseSnapshot;
+        if (snapshot != null)
+        {
+            return snapshot.createStack();
+        }
+        ConfigurationNode node = this.serializer.toConfigurationNode(this.base.fill(values));
+        ItemStack stack = this.serializer.deserializeBase(node);
+        if (this.base.isConstant() && !this.serializer.isByteItem(node))
+        {
+            this.baseSnapshot = stack.createSnapshot();
+        }
+        return stack;
+    }
+
+    static final class Builder
+    {
+        private Node base = new ConstantNode(ImmutableMap.of());
+        private final ImmutableList.Builder<TextTemplate> holes = ImmutableList.builder();
+        private final ImmutableList.Builder<KeyApplier> appliers = ImmutableList.builder();
+
+        private int holeCount = 0;
+
+        private Builder()
+        {
+        }
+
+        Node compile(ConfigurationNode node, VirtualChestPlaceholderManager placeholderManager)
+        {
+            if (node.hasListChildren())
+            {
+                boolean isConstant = true;
+                ImmutableList.Builder<Node> children = ImmutableList.builder();
+                for (ConfigurationNode child : node.getChildrenList())
+                {
+                    Node compiled = this.compile(child, placeholderManager);
+                    isConstant = isConstant && compiled.isConstant();
+                    children.add(compiled);
+                }
+                return isConstant ? new ConstantNode(node.getValue()) : new ListNode(children.build());
+            }
+            if (node.hasMapChildren())
+            {
+                boolean isConstant = true;
+                ImmutableMap.Builder<Object, Node> children = ImmutableMap.builder();
+                for (Map.Entry<Object, ? extends ConfigurationNode> entry : node.getChildrenMap().entrySet())
+                {
+                    Node compiled = this.compile(entry.getValue(), placeholderManager);
+                    isConstant = isConstant && compiled.isConstant();
+                    children.put(entry.getKey(), compiled);
+                }
+                return isConstant ? new ConstantNode(node.getValue()) : new MapNode(children.build());
+            }
+            Object value = node.getValue();
+            if (value instanceof String && placeholderManager.hasPlaceholders((String) value))
+            {
+                this.holes.add(placeholderManager.toTemplate((String) value));
+                return new HoleNode(this.holeCount++);
+            }
+            return new ConstantNode(value);
+        }
+
+        Builder base(Map<Object, Node> children)
+        {
+            MapNode node = new MapNode(children);
+            boolean isConstant = children.values().stream().allMatch(Node::isConstant);
+            this.base = isConstant ? new ConstantNode(node.fill(new String[0])) : node;
+            return this;
+        }
+
+        Builder applier(String name, Key<?> key, Node node)
+        {
+            this.appliers.add(new KeyApplier(name, key, node));
+            return this;
+        }
+
+        VirtualChestItemStackTemplate build(VirtualChestItemStackSerializer serializer)
+        {
+            return new VirtualChestItemStackTemplate(serializer, this);
+        }
+    }
+
+    private static final class KeyApplier
+    {
+        private final String name;
+        private final Key<?> key;
+        private final Node node;
+
+        @Nullable
+        private volatile Object constantValue = null;
+
+        private KeyApplier(String name, Key<?> key, Node node)
+        {
+            this.name = name;
+            this.key = key;
+            this.node = node;
+        }
+
+        private boolean apply(VirtualChestItemStackSerializer serializer, ItemStack stack, String[] values)
+        {
+            boolean isFilled = true;
+            Object value = this.constantValue;
+            if (value == null)
+            {
+                value = serializer.deserializeValue(this.key, this.node.fill(values));
+                // an unfilled game profile should be looked up again at the next render
+                isFilled = !(value instanceof GameProfile) || ((GameProfile) value).isFilled();
+                if (this.node.isConstant() && isFilled)
+                {
+                    this.constantValue = value;
+                }
+            }
+            this.offer(stack, value);
+            return isFilled;
+        }
+
+        private <T, U extends BaseValue<T>> void offer(ItemStack stack, Object value)
+        {
+            @SuppressWarnings("unchecked")
+            Key<U> key = (Key<U>) this.key;
+            @SuppressWarnings("unchecked")
+            T data = (T) value;
+            DataTransactionResult result = stack.offer(key, data);
+            if (!result.isSuccessful())
+            {
+                throw new InvalidDataException();
+            }
+        }
+    }
+
+    interface Node
+    {
+        Object fill(String[] values);
+
+        boolean isConstant();
+    }
+
+    private static final class ConstantNode implements Node
+    {
+        private final Optional<Object> value;
+
+        private ConstantNode(@Nullable Object value)
+        {
+            this.value = Optional.ofNullable(value);
+        }
+
+        @Override
+        public Object fill(String[] values)
+        {
+            return this.value.orElse(null);
+        }
+
+        @Override
+        public boolean isConstant()
+        {
+            return true;
+        }
+    }
+
+    private static final class HoleNode implements Node
+    {
+        private final int index;
+
+        private HoleNode(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public Object fill(String[] values)
+        {
+            return values[this.index];
+        }
+
+        @Override
+        public boolean isConstant()
+        {
+            return false;
+        }
+    }
+
+    private static final class ListNode implements Node
+    {
+        private final List<Node> children;
+
+        private ListNode(List<Node> children)
+        {
+            this.children = children;
+        }
+
+        @Override
+        public Object fill(String[] values)
+        {
+            List<Object> list = new ArrayList<>(this.children.size());
+            for (Node child : this.children)
+            {
+                list.add(child.fill(values));
+            }
+            return list;
+        }
+
+        @Override
+        public boolean isConstant()
+        {
+            return false;
+        }
+    }
+
+    private static final class MapNode implements Node
+    {
+        private final Map<Object, Node> children;
+
+        private MapNode(Map<Object, Node> children)
+        {
+            this.children = children;
+        }
+
+        @Override
+        public Object fill(String[] values)
+        {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<Object, Node> entry : this.children.entrySet())
+            {
+                map.put(entry.getKey(), entry.getValue().fill(values));
+            }
+            return map;
+        }
+
+        @Override
+        public boolean isConstant()
+        {
+            return false;
+        }
+    }
+}
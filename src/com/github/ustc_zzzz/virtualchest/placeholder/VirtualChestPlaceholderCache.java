@@ -0,0 +1,280 @@
+package com.github.ustc_zzzz.virtualchest.placeholder;
+
+import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
+import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.TypeToken;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import org.spongepowered.api.Server;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolved placeholder values which are shared by all the renderings, requirement scripts and
+ * commands of a player. A value is kept in the tick it is resolved by default, and the time to
+ * live of some placeholders could be extended in the config. Placeholders configured as shared
+ * are resolved once for all the players. Placeholders configured as async are prefetched outside
+ * the main thread, and the last known values of them are kept for the renderings.
+ *
+ * @author ustc_zzzz
+ */
+public class VirtualChestPlaceholderCache
+{
+    private static final String PREFIX_WILDCARD = "*";
+    private static final UUID SHARED_OWNER = new UUID(0, 0);
+    private static final Object NULL_VALUE = new Object();
+
+    private final VirtualChestTranslation translation;
+
+    private final Map<UUID, Map<String, Entry>> values = new HashMap<>();
+    private final Map<String, Entry> sharedValues = new HashMap<>();
+
+    private final Map<String, Integer> resolvedTimeToLiveTicks = new HashMap<>();
+    private final Map<String, Boolean> resolvedShared = new HashMap<>();
+    private final Map<String, Boolean> resolvedAsync = new HashMap<>();
+
+    private final Map<UUID, Map<String, Object>> lastKnownValues = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<String>> pendingKeys = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private Map<String, Integer> timeToLiveTicks = ImmutableMap.of();
+    private List<String> sharedPlaceholders = ImmutableList.of();
+    private List<String> asyncPlaceholders = ImmutableList.of();
+
+    public VirtualChestPlaceholderCache(VirtualChestPlugin plugin)
+    {
+        this.translation = plugin.getTranslation();
+    }
+
+    public boolean contains(Player player, String key)
+    {
+        Entry entry = this.getValues(player, key).map(map -> map.get(key)).orElse(null);
+        return Objects.nonNull(entry) && entry.expireTick >= Sponge.getServer().getRunningTimeTicks();
+    }
+
+    public Object get(Player player, String key)
+    {
+        return this.getValues(player, key).map(map -> map.get(key)).map(entry -> entry.value).orElse(null);
+    }
+
+    public void put(Player player, String key, Object value)
+    {
+        Optional<Map<String, Entry>> map = this.getValues(player, key);
+        if (map.isPresent())
+        {
+            int expireTick = Sponge.getServer().getRunningTimeTicks() + this.getTimeToLiveTicks(key);
+            map.get().put(key, new Entry(value, expireTick));
+        }
+    }
+
+    private Optional<Map<String, Entry>> getValues(Player player, String key)
+    {
+        Server server = Sponge.getServer();
+        // values resolved outside the main thread are never shared
+        if (!server.isMainThread())
+        {
+            return Optional.empty();
+        }
+        if (this.isShared(key))
+        {
+            return Optional.of(this.sharedValues);
+        }
+        return Optional.of(this.values.computeIfAbsent(player.getUniqueId(), k -> new HashMap<>()));
+    }
+
+    public boolean isAsync(String key)
+    {
+        List<String> patterns = this.asyncPlaceholders;
+        return this.resolvedAsync.computeIfAbsent(key, k -> patterns.stream().anyMatch(p -> matches(p, k)));
+    }
+
+    public boolean hasLastKnown(Player player, String key)
+    {
+        Map<String, Object> map = this.lastKnownValues.get(this.getOwner(player, key));
+        return Objects.nonNull(map) && map.containsKey(key);
+    }
+
+    public Object getLastKnown(Player player, String key)
+    {
+        Map<String, Object> map = this.lastKnownValues.get(this.getOwner(player, key));
+        Object value = Objects.isNull(map) ? null : map.get(key);
+        return value == NULL_VALUE ? null : value;
+    }
+
+    public void putLastKnown(UUID owner, String key, Object value)
+    {
+        // values fetched for players who have disconnected are dropped
+        Map<String, Object> map = this.lastKnownValues.get(owner);
+        if (Objects.nonNull(map))
+        {
+            map.put(key, Objects.isNull(value) ? NULL_VALUE : value);
+        }
+    }
+
+    public Map<UUID, List<String>> markPending(Player player, Collection<String> keys)
+    {
+        // keys which are being fetched are excluded
+        Map<UUID, List<String>> result = new HashMap<>();
+        for (String key : keys)
+        {
+            UUID owner = this.getOwner(player, key);
+            this.lastKnownValues.computeIfAbsent(owner, k -> new ConcurrentHashMap<>());
+            if (this.pendingKeys.computeIfAbsent(owner, k -> ConcurrentHashMap.newKeySet()).add(key))
+            {
+                result.computeIfAbsent(owner, k -> new ArrayList<>()).add(key);
+            }
+        }
+        return result;
+    }
+
+    public void unmarkPending(UUID owner, Collection<String> keys)
+    {
+        Set<String> pending = this.pendingKeys.get(owner);
+        if (Objects.nonNull(pending))
+        {
+            pending.removeAll(keys);
+        }
+    }
+
+    private UUID getOwner(Player player, String key)
+    {
+        return this.isShared(key) ? SHARED_OWNER : player.getUniqueId();
+    }
+
+    private int getTimeToLiveTicks(String key)
+    {
+        return this.resolvedTimeToLiveTicks.computeIfAbsent(key, k ->
+        {
+            String matched = "";
+            int ticks = 0;
+            for (Map.Entry<String, Integer> entry : this.timeToLiveTicks.entrySet())
+            {
+                String pattern = entry.getKey();
+                if (k.equals(pattern))
+                {
+                    return entry.getValue();
+                }
+                // the longest prefix wins
+                if (matches(pattern, k) && pattern.length() > matched.length())
+                {
+                    matched = pattern;
+                    ticks = entry.getValue();
+                }
+            }
+            return ticks;
+        });
+    }
+
+    private boolean isShared(String key)
+    {
+        List<String> patterns = this.sharedPlaceholders;
+        return this.resolvedShared.computeIfAbsent(key, k -> patterns.stream().anyMatch(p -> matches(p, k)));
+    }
+
+    private static boolean matches(String pattern, String key)
+    {
+        if (pattern.endsWith(PREFIX_WILDCARD))
+        {
+            return key.startsWith(pattern.substring(0, pattern.length() - PREFIX_WILDCARD.length()));
+        }
+        return key.equals(pattern);
+    }
+
+    public void recordHits(int count)
+    {
+        this.hitCount.addAndGet(count);
+    }
+
+    public void recordMisses(int count)
+    {
+        this.missCount.addAndGet(count);
+    }
+
+    public void evict(String placeholderKey, Player player)
+    {
+        this.sharedValues.remove(placeholderKey);
+        Map<String, Entry> map = this.values.get(player.getUniqueId());
+        if (map != null)
+        {
+            map.remove(placeholderKey);
+        }
+        // an invalidated async placeholder will be resolved synchronously next time
+        this.lastKnownValues.getOrDefault(SHARED_OWNER, Collections.emptyMap()).remove(placeholderKey);
+        this.lastKnownValues.getOrDefault(player.getUniqueId(), Collections.emptyMap()).remove(placeholderKey);
+    }
+
+    public void evict(Player player)
+    {
+        this.values.remove(player.getUniqueId());
+        this.lastKnownValues.remove(player.getUniqueId());
+        this.pendingKeys.remove(player.getUniqueId());
+    }
+
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    public void loadConfig(CommentedConfigurationNode node) throws IOException
+    {
+        try
+        {
+            Map<String, Integer> timeToLiveTicks = new LinkedHashMap<>();
+            for (Map.Entry<Object, ? extends CommentedConfigurationNode> entry :
+                    node.getNode("ttl-ticks").getChildrenMap().entrySet())
+            {
+                timeToLiveTicks.put(String.valueOf(entry.getKey()), Math.max(0, entry.getValue().getInt()));
+            }
+            this.timeToLiveTicks = ImmutableMap.copyOf(timeToLiveTicks);
+            this.sharedPlaceholders = ImmutableList.copyOf(node.getNode("shared").getList(TypeToken.of(String.class)));
+            this.asyncPlaceholders = ImmutableList.copyOf(node.getNode("async").getList(TypeToken.of(String.class)));
+        }
+        catch (ObjectMappingException e)
+        {
+            throw new IOException(e);
+        }
+        this.resolvedTimeToLiveTicks.clear();
+        this.resolvedShared.clear();
+        this.resolvedAsync.clear();
+        this.lastKnownValues.clear();
+        this.sharedValues.clear();
+        this.values.clear();
+    }
+
+    public void saveConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.translation.withComment(node, "virtualchest.config.placeholderCache.comment");
+        this.translation.withComment(node.getNode("ttl-ticks"), "virtualchest.config.placeholderCache.ttlTicks.comment")
+                .setValue(this.timeToLiveTicks);
+        this.translation.withComment(node.getNode("shared"), "virtualchest.config.placeholderCache.shared.comment")
+                .setValue(this.sharedPlaceholders);
+        this.translation.withComment(node.getNode("async"), "virtualchest.config.placeholderCache.async.comment")
+                .setValue(this.asyncPlaceholders);
+    }
+
+    private static final class Entry
+    {
+        private final Object value;
+        private final int expireTick;
+
+        private Entry(Object value, int expireTick)
+        {
+            this.value = value;
+            this.expireTick = expireTick;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.github.ustc_zzzz.virtualchest.placeholder;
 
 import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
-import com.google.gson.JsonPrimitive;
 import me.rojo8399.placeholderapi.PlaceholderService;
+import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scheduler.SpongeExecutorService;
 import org.spongepowered.api.service.ProviderRegistration;
 import org.spongepowered.api.service.ServiceManager;
 import org.spongepowered.api.text.Text;
@@ -14,12 +18,8 @@ import org.spongepowered.api.text.TextTemplate;
 import org.spongepowered.api.text.serializer.TextSerializer;
 import org.spongepowered.api.text.serializer.TextSerializers;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author ustc_zzzz
@@ -27,19 +27,27 @@ import java.util.regex.Pattern;
 public class VirtualChestPlaceholderManager
 {
     private static final String ARG_BOUNDARY = "%";
-    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("[%]([^%\\s]+)[%]", Pattern.CASE_INSENSITIVE);
+    private static final int TEMPLATE_CACHE_SIZE = 4096;
 
+    private final Logger logger;
     private final String papiVersion;
+    private final SpongeExecutorService asyncExecutor;
     private final PlaceholderService papiService;
+    private final VirtualChestPlaceholderCache cache;
+    private final Cache<String, TextTemplate> templateCache = CacheBuilder.newBuilder()
+            .maximumSize(TEMPLATE_CACHE_SIZE).concurrencyLevel(2).build();
 
     public VirtualChestPlaceholderManager(VirtualChestPlugin plugin)
     {
+        this.logger = plugin.getLogger();
+        this.asyncExecutor = Sponge.getScheduler().createAsyncExecutor(plugin);
         ProviderRegistration<PlaceholderService> registration;
         ServiceManager serviceManager = Sponge.getServiceManager();
         plugin.getLogger().info("Try to load the PlaceholderAPI service ... ");
         registration = serviceManager.getRegistration(PlaceholderService.class).orElseThrow(RuntimeException::new);
         this.papiVersion = registration.getPlugin().getVersion().orElse("unknown");
         this.papiService = registration.getProvider();
+        this.cache = new VirtualChestPlaceholderCache(plugin);
     }
 
     public String getPlaceholderAPIVersion()
@@ -47,48 +55,183 @@ public class VirtualChestPlaceholderManager
         return this.papiVersion;
     }
 
+    public VirtualChestPlaceholderCache getCache()
+    {
+        return this.cache;
+    }
+
     public Object replacePlaceholder(Player player, String token)
     {
-        TextTemplate template = TextTemplate.of(ARG_BOUNDARY, ARG_BOUNDARY, TextTemplate.arg(token));
-        return Objects.requireNonNull(this.papiService.fillPlaceholders(template, player, player).get(token));
+        return Objects.requireNonNull(this.resolve(player, Collections.singleton(token)).get(token));
     }
 
     public String parseJavaScriptLiteral(String text, String functionIdentifier)
     {
-        StringBuilder builder = new StringBuilder();
-        Matcher matcher = PLACEHOLDER_PATTERN.matcher(text);
+        return toJavaScriptLiteral(text, functionIdentifier);
+    }
+
+    static String toJavaScriptLiteral(String text, String functionIdentifier)
+    {
+        StringBuilder builder = new StringBuilder(text.length() + 16);
+        VirtualChestPlaceholderScanner scanner = new VirtualChestPlaceholderScanner().reset(text);
         int lastIndex = 0;
-        while (matcher.find())
+        while (scanner.find())
         {
-            String matched = new JsonPrimitive(text.substring(matcher.start() + 1, matcher.end() - 1)).toString();
-            builder.append(text, lastIndex, matcher.start()).append(functionIdentifier);
-            builder.append("(").append(matched).append(")");
-            lastIndex = matcher.end();
+            builder.append(text, lastIndex, scanner.start()).append(functionIdentifier).append('(');
+            VirtualChestPlaceholderScanner.appendJsonString(builder, text, scanner.keyStart(), scanner.keyEnd());
+            builder.append(')');
+            lastIndex = scanner.end();
         }
-        if (lastIndex < text.length())
+        return builder.append(text, lastIndex, text.length()).toString();
+    }
+
+    public boolean hasPlaceholders(String text)
+    {
+        return VirtualChestPlaceholderScanner.hasPlaceholders(text);
+    }
+
+    public Set<String> getPlaceholderKeys(String text)
+    {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        VirtualChestPlaceholderScanner scanner = new VirtualChestPlaceholderScanner().reset(text);
+        while (scanner.find())
         {
-            builder.append(text.substring(lastIndex));
+            builder.add(scanner.key());
         }
-        return builder.toString();
+        return builder.build();
     }
 
     public String parseText(Player player, String textToBeReplaced)
+    {
+        if (textToBeReplaced.indexOf('%') < 0)
+        {
+            return textToBeReplaced; // nothing to be replaced
+        }
+        return this.parseText(player, this.toTemplate(textToBeReplaced));
+    }
+
+    public String parseText(Player player, TextTemplate template)
     {
         TextSerializer s = TextSerializers.FORMATTING_CODE;
-        TextTemplate template = this.toTemplate(textToBeReplaced);
-        Map<String, Object> placeholders = this.papiService.fillPlaceholders(template, player, player);
+        Map<String, Object> placeholders = this.resolve(player, template.getArguments().keySet());
         return template.apply(Maps.transformValues(placeholders, v -> s.serialize(Text.of(v)))).build().toPlain();
     }
 
-    private TextTemplate toTemplate(String text)
+    public void prefetch(Player player, Set<String> keys)
+    {
+        if (!keys.isEmpty())
+        {
+            // resolve missing placeholders in one call so that later lookups in the same tick are hits
+            this.fill(player, keys);
+        }
+    }
+
+    private Map<String, Object> resolve(Player player, Set<String> keys)
+    {
+        Map<String, Object> values = this.fill(player, keys);
+        values.values().removeIf(Objects::isNull);
+        return values;
+    }
+
+    private Map<String, Object> fill(Player player, Set<String> keys)
+    {
+        boolean isMainThread = Sponge.getServer().isMainThread();
+        Map<String, Object> values = new HashMap<>(keys.size());
+        List<String> asyncKeys = new ArrayList<>();
+        List<Object> missingArgs = new ArrayList<>(keys.size());
+        for (String key : keys)
+        {
+            if (this.cache.contains(player, key))
+            {
+                values.put(key, this.cache.get(player, key));
+            }
+            else if (isMainThread && this.cache.isAsync(key) && this.cache.hasLastKnown(player, key))
+            {
+                // never wait for an async placeholder if there is a value fetched before
+                Object value = this.cache.getLastKnown(player, key);
+                this.cache.put(player, key, value);
+                values.put(key, value);
+                asyncKeys.add(key);
+            }
+            else
+            {
+                missingArgs.add(TextTemplate.arg(key).build());
+            }
+        }
+        this.cache.recordHits(keys.size() - missingArgs.size());
+        if (!missingArgs.isEmpty())
+        {
+            this.cache.recordMisses(missingArgs.size());
+            TextTemplate template = TextTemplate.of(ARG_BOUNDARY, ARG_BOUNDARY, missingArgs.toArray());
+            Map<String, Object> filled = this.papiService.fillPlaceholders(template, player, player);
+            for (String key : template.getArguments().keySet())
+            {
+                // unresolved placeholders are cached as null so that they will not be resolved again
+                Object value = filled.get(key);
+                this.cache.put(player, key, value);
+                values.put(key, value);
+                if (isMainThread && this.cache.isAsync(key))
+                {
+                    asyncKeys.add(key);
+                }
+            }
+        }
+        if (!asyncKeys.isEmpty())
+        {
+            this.prefetchAsync(player, asyncKeys, values);
+        }
+        return values;
+    }
+
+    private void prefetchAsync(Player player, List<String> keys, Map<String, Object> currentValues)
+    {
+        for (Map.Entry<UUID, List<String>> entry : this.cache.markPending(player, keys).entrySet())
+        {
+            UUID owner = entry.getKey();
+            List<String> ownedKeys = entry.getValue();
+            List<Object> args = new ArrayList<>(ownedKeys.size());
+            for (String key : ownedKeys)
+            {
+                this.cache.putLastKnown(owner, key, currentValues.get(key));
+                args.add(TextTemplate.arg(key).build());
+            }
+            TextTemplate template = TextTemplate.of(ARG_BOUNDARY, ARG_BOUNDARY, args.toArray());
+            CompletableFuture.supplyAsync(() -> this.papiService.fillPlaceholders(template, player, player),
+                    this.asyncExecutor).whenComplete((filled, throwable) ->
+            {
+                if (Objects.nonNull(throwable))
+                {
+                    this.logger.warn("Find error when prefetching placeholders " + ownedKeys, throwable);
+                }
+                else
+                {
+                    ownedKeys.forEach(key -> this.cache.putLastKnown(owner, key, filled.get(key)));
+                }
+                this.cache.unmarkPending(owner, ownedKeys);
+            });
+        }
+    }
+
+    public TextTemplate toTemplate(String text)
+    {
+        TextTemplate template = this.templateCache.getIfPresent(text);
+        if (template == null)
+        {
+            template = this.parseTemplate(text);
+            this.templateCache.put(text, template);
+        }
+        return template;
+    }
+
+    private TextTemplate parseTemplate(String text)
     {
         int lastIndex;
-        List<TextRepresentable> parts = new LinkedList<>();
-        Matcher matcher = PLACEHOLDER_PATTERN.matcher(text);
-        for (lastIndex = 0; matcher.find(); lastIndex = matcher.end())
+        List<TextRepresentable> parts = new ArrayList<>();
+        VirtualChestPlaceholderScanner scanner = new VirtualChestPlaceholderScanner().reset(text);
+        for (lastIndex = 0; scanner.find(); lastIndex = scanner.end())
         {
-            parts.add(Text.of(text.substring(lastIndex, matcher.start())));
-            parts.add(TextTemplate.arg(text.substring(matcher.start() + 1, matcher.end() - 1)).build());
+            parts.add(Text.of(text.substring(lastIndex, scanner.start())));
+            parts.add(TextTemplate.arg(scanner.key()).build());
         }
         if (lastIndex < text.length())
         {
@@ -0,0 +1,144 @@
+package com.github.ustc_zzzz.virtualchest.placeholder;
+
+/**
+ * A single pass scanner for placeholder tokens such as {@code %player_name%}, which accepts the
+ * same tokens as the regular expression {@code [%]([^%\s]+)[%]} without allocating matchers or
+ * substrings. The usage is similar to {@link java.util.regex.Matcher}, and an instance could be
+ * reused for other strings by invoking {@link #reset(CharSequence)}.
+ *
+ * @author ustc_zzzz
+ */
+public final class VirtualChestPlaceholderScanner
+{
+    private static final char BOUNDARY = '%';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private CharSequence text = "";
+    private int start = -1;
+    private int end = 0;
+
+    public VirtualChestPlaceholderScanner reset(CharSequence text)
+    {
+        this.text = text;
+        this.start = -1;
+        this.end = 0;
+        return this;
+    }
+
+    public boolean find()
+    {
+        CharSequence text = this.text;
+        int length = text.length();
+        int index = this.end;
+        while (index < length)
+        {
+            if (text.charAt(index) != BOUNDARY)
+            {
+                ++index;
+                continue;
+            }
+            int cursor = index + 1;
+            while (cursor < length && !isTerminator(text.charAt(cursor)))
+            {
+                ++cursor;
+            }
+            if (cursor < length && cursor > index + 1 && text.charAt(cursor) == BOUNDARY)
+            {
+                this.start = index;
+                this.end = cursor + 1;
+                return true;
+            }
+            // there is no boundary between the two indices, so they will never be the start of a token
+            index = cursor;
+        }
+        this.start = -1;
+        this.end = length;
+        return false;
+    }
+
+    public int start()
+    {
+        return this.start;
+    }
+
+    public int end()
+    {
+        return this.end;
+    }
+
+    public int keyStart()
+    {
+        return this.start + 1;
+    }
+
+    public int keyEnd()
+    {
+        return this.end - 1;
+    }
+
+    public String key()
+    {
+        return this.text.subSequence(this.start + 1, this.end - 1).toString();
+    }
+
+    public static boolean hasPlaceholders(CharSequence text)
+    {
+        return new VirtualChestPlaceholderScanner().reset(text).find();
+    }
+
+    /**
+     * escapes the characters in the same way as {@link com.google.gson.JsonPrimitive#toString()}
+     */
+    public static StringBuilder appendJsonString(StringBuilder builder, CharSequence text, int start, int end)
+    {
+        builder.append('"');
+        for (int i = start; i < end; ++i)
+        {
+            char c = text.charAt(i);
+            switch (c)
+            {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                case '\u2028':
+                    builder.append("\\u2028");
+                    break;
+                case '\u2029':
+                    builder.append("\\u2029");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        builder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    }
+                    else
+                    {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"');
+    }
+
+    private static boolean isTerminator(char c)
+    {
+        // the same as '%' and '\s' in regular expressions
+        return c == BOUNDARY || c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
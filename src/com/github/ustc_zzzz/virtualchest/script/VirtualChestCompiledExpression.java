@@ -0,0 +1,82 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import org.spongepowered.api.entity.living.player.Player;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.function.Function;
+
+/**
+ * @author ustc_zzzz
+ */
+final class VirtualChestCompiledExpression extends CompiledScript
+{
+    private final VirtualChestScriptExpression expression;
+    private final CompiledScript fallback;
+
+    VirtualChestCompiledExpression(VirtualChestScriptExpression expression, CompiledScript fallback)
+    {
+        this.expression = expression;
+        this.fallback = fallback;
+    }
+
+    VirtualChestScriptExpression getExpression()
+    {
+        return this.expression;
+    }
+
+    CompiledScript getFallback()
+    {
+        return this.fallback;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException
+    {
+        try
+        {
+            return this.expression.evaluate(new ContextBindings(context));
+        }
+        catch (VirtualChestScriptExpression.FallbackException e)
+        {
+            return this.fallback.eval(context);
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine()
+    {
+        return this.fallback.getEngine();
+    }
+
+    private static class ContextBindings implements VirtualChestScriptExpression.Bindings
+    {
+        private final ScriptContext context;
+
+        private ContextBindings(ScriptContext context)
+        {
+            this.context = context;
+        }
+
+        @Override
+        public Player getPlayer()
+        {
+            return (Player) this.context.getAttribute("player");
+        }
+
+        @Override
+        public Object getTick()
+        {
+            return this.context.getAttribute("tick");
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object papi(String key)
+        {
+            return ((Function<String, Object>) this.context.getAttribute("papi")).apply(key);
+        }
+    }
+}
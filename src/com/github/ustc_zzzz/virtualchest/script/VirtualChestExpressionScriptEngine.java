@@ -0,0 +1,46 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A built-in engine which only accepts the subset of javascript recognized by
+ * {@link VirtualChestScriptExpression}. It needs no javascript engine and nothing to warm up, and
+ * scripts out of the subset are rejected when compiling.
+ *
+ * @author ustc_zzzz
+ */
+public class VirtualChestExpressionScriptEngine implements VirtualChestScriptEngine
+{
+    private static final CompiledScript UNSUPPORTED = new CompiledScriptUnsupported();
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException
+    {
+        return new VirtualChestCompiledExpression(VirtualChestScriptExpression.compile(script, true), UNSUPPORTED);
+    }
+
+    @Override
+    public boolean isJavaScript()
+    {
+        return false;
+    }
+
+    private static class CompiledScriptUnsupported extends CompiledScript
+    {
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException
+        {
+            // never reached since standalone expressions never fall back, there is no engine to fall back to
+            throw new ScriptException("The value could not be handled exactly as javascript by the expression engine");
+        }
+
+        @Override
+        public ScriptEngine getEngine()
+        {
+            return null;
+        }
+    }
+}
@@ -4,6 +4,9 @@ import co.aikar.timings.Timing;
 import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
 import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
 import com.github.ustc_zzzz.virtualchest.timings.VirtualChestTimings;
+import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import com.google.common.collect.ImmutableMap;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
 import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.living.player.Player;
@@ -11,35 +14,87 @@ import org.spongepowered.api.text.Text;
 import org.spongepowered.api.util.Tuple;
 
 import javax.script.*;
-import java.util.Map;
-import java.util.Objects;
-import java.util.WeakHashMap;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
+ * Requirement scripts are evaluated in script contexts owned by the current thread, so it is safe
+ * to evaluate them for different players on different threads at the same time. Scripts are
+ * compiled by the {@link VirtualChestScriptEngine} selected in the config.
+ *
  * @author ustc_zzzz
  */
 public class VirtualChestJavaScriptManager
 {
+    private static final Object COMBINED_ERROR = new Object();
+    private static final String DEFAULT_ENGINE = "nashorn";
+    private static final String FALLBACK_ENGINE = "expression";
+    private static final Map<String, Supplier<VirtualChestScriptEngine>> ENGINES = ImmutableMap.of(
+            DEFAULT_ENGINE, VirtualChestNashornScriptEngine::new,
+            FALLBACK_ENGINE, VirtualChestExpressionScriptEngine::new);
+    static final Pattern STRING_LITERAL = Pattern.compile("\"(?:[^\"\\\\]|\\\\.)*\"|'(?:[^'\\\\]|\\\\.)*'");
+    static final Pattern SIDE_EFFECT = Pattern.compile("(?<![=!<>])=(?!=)|\\+\\+|--|;|" +
+            "\\b(?:var|let|const|function|delete|new|for|while|do|if|return|throw|with)\\b");
+
     private final Logger logger;
     private final VirtualChestPlugin plugin;
-    private final ScriptEngine scriptEngine;
+    private final VirtualChestTranslation translation;
+    private final VirtualChestScriptWatchdog watchdog;
+
+    private String engineName = DEFAULT_ENGINE;
+    private VirtualChestScriptEngine engine;
 
     private final CompiledScript nonsenseTrue;
     private final CompiledScript nonsenseFalse;
 
-    private final SimpleScriptContext tempContext = new SimpleScriptContext();
-    private final Map<Player, Long> tickWhileOpeningInventory = new WeakHashMap<>();
+    private Map<String, CompiledScript> compiledScripts = new HashMap<>();
+    private Map<String, CompiledScript> previousCompiledScripts = new HashMap<>();
+    private int preparedScriptCount = 0;
+
+    private Map<CompiledScript, VirtualChestScriptDependencies> dependencies = new ConcurrentHashMap<>();
+    private final Map<UUID, Map<CompiledScript, Memo>> memos = new ConcurrentHashMap<>();
+    private final AtomicLong memoHits = new AtomicLong();
+
+    private final AtomicLong javaEvaluations = new AtomicLong();
+    private final AtomicLong engineEvaluations = new AtomicLong();
+
+    private final ThreadLocal<ScriptContext> contexts = ThreadLocal.withInitial(this::createContext);
+    private final Map<Player, Long> tickWhileOpeningInventory = Collections.synchronizedMap(new WeakHashMap<>());
 
     public VirtualChestJavaScriptManager(VirtualChestPlugin plugin)
     {
         this.plugin = plugin;
         this.logger = plugin.getLogger();
-        this.tempContext.setAttribute("server", Sponge.getServer(), ScriptContext.ENGINE_SCOPE);
-        this.scriptEngine = Objects.requireNonNull(new ScriptEngineManager(null).getEngineByName("nashorn"));
+        this.translation = plugin.getTranslation();
+        this.watchdog = new VirtualChestScriptWatchdog(plugin);
 
-        this.nonsenseTrue = new CompiledScriptNonsense(this.scriptEngine, Boolean.TRUE);
-        this.nonsenseFalse = new CompiledScriptNonsense(this.scriptEngine, Boolean.FALSE);
+        this.nonsenseTrue = new CompiledScriptNonsense(Boolean.TRUE);
+        this.nonsenseFalse = new CompiledScriptNonsense(Boolean.FALSE);
+    }
+
+    private VirtualChestScriptEngine getEngine()
+    {
+        // the engine is created lazily since nashorn takes a while to start
+        if (Objects.isNull(this.engine))
+        {
+            try
+            {
+                this.engine = ENGINES.get(this.engineName).get();
+            }
+            catch (RuntimeException e)
+            {
+                this.logger.error("Cannot create the script engine '" + this.engineName + "', " +
+                        "the engine '" + FALLBACK_ENGINE + "' is used instead", e);
+                this.engine = ENGINES.get(FALLBACK_ENGINE).get();
+            }
+        }
+        return this.engine;
     }
 
     public void onOpeningInventory(Player player)
@@ -47,6 +102,23 @@ public class VirtualChestJavaScriptManager
         this.tickWhileOpeningInventory.put(player, player.getWorld().getProperties().getTotalTime());
     }
 
+    public void beginPreparation()
+    {
+        // scripts which are not used any more will be dropped after the preparation
+        this.previousCompiledScripts = this.compiledScripts;
+        this.compiledScripts = new HashMap<>();
+        this.dependencies = new ConcurrentHashMap<>();
+        this.preparedScriptCount = 0;
+        this.memos.clear();
+    }
+
+    public void endPreparation()
+    {
+        this.previousCompiledScripts = new HashMap<>();
+        int total = this.preparedScriptCount, unique = this.compiledScripts.size();
+        this.logger.info("{} requirement script(s) prepared, {} of them are unique.", total, unique);
+    }
+
     public Tuple<String, CompiledScript> prepare(String scriptLiteral)
     {
         String script = this.plugin.getPlaceholderManager().parseJavaScriptLiteral(scriptLiteral.trim(), "papi");
@@ -54,27 +126,123 @@ public class VirtualChestJavaScriptManager
         {
             return Tuple.of(scriptLiteral, this.nonsenseTrue);
         }
+        ++this.preparedScriptCount;
+        CompiledScript compiled = this.compiledScripts.get(script);
+        if (Objects.isNull(compiled))
+        {
+            compiled = this.previousCompiledScripts.get(script);
+            compiled = Objects.isNull(compiled) ? this.compile(script, scriptLiteral) : compiled;
+            this.compiledScripts.put(script, compiled);
+            this.analyzeDependencies(compiled, scriptLiteral);
+        }
+        return Tuple.of(scriptLiteral, compiled);
+    }
+
+    private void analyzeDependencies(CompiledScript compiled, String scriptLiteral)
+    {
+        // scripts evaluated in java read their inputs directly, so it is not worth memoizing them
+        if (!(compiled instanceof VirtualChestCompiledExpression) && !(compiled instanceof CompiledScriptNonsense))
+        {
+            Optional<VirtualChestScriptDependencies> optional;
+            optional = VirtualChestScriptDependencies.analyze(this.toScript(scriptLiteral));
+            optional.ifPresent(dependencies -> this.dependencies.put(compiled, dependencies));
+        }
+    }
+
+    private CompiledScript compile(String script, String scriptLiteral)
+    {
         try
         {
             this.logger.debug("Compile script \"{}\" for preparation", script);
-            return Tuple.of(scriptLiteral, ((Compilable) this.scriptEngine).compile(script));
+            return this.getEngine().compile(script);
         }
         catch (ScriptException e)
         {
             this.logger.error("Error found when compiling script \"" + script +
                     "\" (the original script is \"" + scriptLiteral.trim() + "\")", e);
             this.logger.debug("Result: {}", Boolean.FALSE);
-            return Tuple.of(scriptLiteral, this.nonsenseFalse);
+            return this.nonsenseFalse;
+        }
+    }
+
+    public boolean isAlwaysTrue(Tuple<String, CompiledScript> tuple)
+    {
+        return tuple.getSecond() == this.nonsenseTrue;
+    }
+
+    public boolean execute(Player player, Tuple<String, CompiledScript> tuple, String name, int slot)
+    {
+        if (tuple.getSecond() instanceof CompiledScriptNonsense)
+        {
+            return this.execute(player, tuple);
+        }
+        VirtualChestScriptWatchdog.Entry entry = this.watchdog.getEntry(name, slot, tuple.getFirst());
+        if (entry.isDisabled())
+        {
+            return false;
+        }
+        VirtualChestScriptDependencies dependencies = this.dependencies.get(tuple.getSecond());
+        if (Objects.isNull(dependencies))
+        {
+            return this.executeAndRecord(player, tuple, entry);
+        }
+        // the result is reused until one of the inputs changes
+        Object[] inputs = dependencies.resolve(player, this.plugin.getPlaceholderManager());
+        UUID uuid = player.getUniqueId();
+        Map<CompiledScript, Memo> memos = this.memos.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>());
+        Memo memo = memos.get(tuple.getSecond());
+        if (Objects.nonNull(memo) && Arrays.equals(memo.inputs, inputs))
+        {
+            this.memoHits.incrementAndGet();
+            return memo.result;
+        }
+        boolean result = this.executeAndRecord(player, tuple, entry);
+        memos.put(tuple.getSecond(), new Memo(inputs, result));
+        return result;
+    }
+
+    private boolean executeAndRecord(Player player, Tuple<String, CompiledScript> tuple,
+                                     VirtualChestScriptWatchdog.Entry entry)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return this.execute(player, tuple);
+        }
+        finally
+        {
+            entry.record(System.nanoTime() - start);
         }
     }
 
-    public boolean execute(Player player, Tuple<String, CompiledScript> tuple)
+    public void release(Player player)
     {
+        this.memos.remove(player.getUniqueId());
+    }
+
+    private boolean execute(Player player, Tuple<String, CompiledScript> tuple)
+    {
+        CompiledScript compiled = tuple.getSecond();
+        if (compiled instanceof VirtualChestCompiledExpression)
+        {
+            try (Timing ignored = VirtualChestTimings.executeRequirementScript().startTimingIfSync())
+            {
+                VirtualChestScriptExpression expression = ((VirtualChestCompiledExpression) compiled).getExpression();
+                Object result = expression.evaluate(new ExpressionBindings(player));
+                this.javaEvaluations.incrementAndGet();
+                return Boolean.valueOf(String.valueOf(result));
+            }
+            catch (VirtualChestScriptExpression.FallbackException e)
+            {
+                compiled = ((VirtualChestCompiledExpression) compiled).getFallback();
+            }
+        }
         String scriptLiteral = tuple.getFirst();
         ScriptContext context = this.getContext(player);
-        try (Timing ignored = VirtualChestTimings.executeRequirementScript().startTiming())
+        try (Timing ignored = VirtualChestTimings.executeRequirementScript().startTimingIfSync())
         {
-            return Boolean.valueOf(String.valueOf(tuple.getSecond().eval(context)));
+            this.engineEvaluations.incrementAndGet();
+            return Boolean.valueOf(String.valueOf(compiled.eval(context)));
         }
         catch (ScriptException e)
         {
@@ -89,6 +257,157 @@ public class VirtualChestJavaScriptManager
         }
     }
 
+    public boolean isCombinable(Tuple<String, CompiledScript> tuple)
+    {
+        CompiledScript compiled = tuple.getSecond();
+        if (compiled instanceof CompiledScriptNonsense || compiled instanceof VirtualChestCompiledExpression)
+        {
+            return false;
+        }
+        // memoized scripts are evaluated individually so that their results could be reused
+        if (this.dependencies.containsKey(compiled))
+        {
+            return false;
+        }
+        // scripts which may have side effects should not be evaluated if the former ones have matched
+        String script = STRING_LITERAL.matcher(this.toScript(tuple.getFirst())).replaceAll("\"\"");
+        return !SIDE_EFFECT.matcher(script).find();
+    }
+
+    public Optional<Tuple<String, CompiledScript>> prepareCombined(List<Tuple<String, CompiledScript>> tuples)
+    {
+        // the combined literal lists the scripts line by line, which is shown by the watchdog
+        String literal = tuples.stream().map(Tuple::getFirst).map(String::trim).collect(Collectors.joining("\n"));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < tuples.size(); ++i)
+        {
+            // line breaks are added in case that the script ends with a comment
+            builder.append("try { __results[").append(i).append("] = (\n");
+            builder.append(this.toScript(tuples.get(i).getFirst())).append("\n); } ");
+            builder.append("catch (e) { __results[").append(i).append("] = __error; }\n");
+        }
+        String script = builder.toString();
+        try
+        {
+            this.logger.debug("Compile combined script \"{}\" for preparation", script);
+            VirtualChestScriptEngine engine = this.getEngine();
+            return engine.isJavaScript() ? Optional.of(Tuple.of(literal, engine.compile(script))) : Optional.empty();
+        }
+        catch (ScriptException e)
+        {
+            this.logger.debug("Error found when compiling combined script, scripts will be evaluated one by one", e);
+            return Optional.empty();
+        }
+    }
+
+    public Boolean[] executeCombined(Player player, Tuple<String, CompiledScript> combined, int size, String name)
+    {
+        // null elements stand for the scripts which should be evaluated individually
+        Boolean[] matched = new Boolean[size];
+        Object[] results = new Object[size];
+        int slot = VirtualChestScriptWatchdog.COMBINED_SLOT;
+        VirtualChestScriptWatchdog.Entry entry = this.watchdog.getEntry(name, slot, combined.getFirst());
+        if (entry.isDisabled())
+        {
+            return matched;
+        }
+        long start = System.nanoTime();
+        ScriptContext context = this.getContext(player);
+        try (Timing ignored = VirtualChestTimings.executeRequirementScript().startTimingIfSync())
+        {
+            context.setAttribute("__error", COMBINED_ERROR, ScriptContext.ENGINE_SCOPE);
+            context.setAttribute("__results", results, ScriptContext.ENGINE_SCOPE);
+            combined.getSecond().eval(context);
+            this.engineEvaluations.incrementAndGet();
+        }
+        catch (ScriptException e)
+        {
+            this.logger.debug("Error found when executing combined script for player " + player.getName(), e);
+            return matched;
+        }
+        finally
+        {
+            this.removeContextAttributes(context);
+            context.removeAttribute("__error", ScriptContext.ENGINE_SCOPE);
+            context.removeAttribute("__results", ScriptContext.ENGINE_SCOPE);
+            entry.record(System.nanoTime() - start);
+        }
+        for (int i = 0; i < size; ++i)
+        {
+            matched[i] = results[i] == COMBINED_ERROR ? null : Boolean.valueOf(String.valueOf(results[i]));
+        }
+        return matched;
+    }
+
+    private String toScript(String scriptLiteral)
+    {
+        String script = this.plugin.getPlaceholderManager().parseJavaScriptLiteral(scriptLiteral.trim(), "papi");
+        while (script.endsWith(";"))
+        {
+            script = script.substring(0, script.length() - 1).trim();
+        }
+        return script;
+    }
+
+    public void loadConfig(CommentedConfigurationNode node) throws IOException
+    {
+        String engineName = node.getString(DEFAULT_ENGINE);
+        if (!ENGINES.containsKey(engineName))
+        {
+            this.logger.warn("Unknown script engine '{}', the engine '{}' is used instead", engineName, DEFAULT_ENGINE);
+            engineName = DEFAULT_ENGINE;
+        }
+        if (!engineName.equals(this.engineName))
+        {
+            // scripts compiled by the previous engine should not be reused
+            this.compiledScripts = new HashMap<>();
+            this.engineName = engineName;
+            this.engine = null;
+        }
+    }
+
+    public void saveConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.translation.withComment(node, "virtualchest.config.scriptEngine.comment").setValue(this.engineName);
+    }
+
+    public VirtualChestScriptWatchdog getWatchdog()
+    {
+        return this.watchdog;
+    }
+
+    public long getJavaScriptCount()
+    {
+        Collection<CompiledScript> scripts = this.compiledScripts.values();
+        return scripts.stream().filter(s -> s instanceof VirtualChestCompiledExpression).count();
+    }
+
+    public long getEngineScriptCount()
+    {
+        Collection<CompiledScript> scripts = this.compiledScripts.values();
+        return scripts.stream().filter(s -> !(s instanceof VirtualChestCompiledExpression)).count();
+    }
+
+    public long getMemoizedScriptCount()
+    {
+        return this.dependencies.size();
+    }
+
+    public long getMemoHitCount()
+    {
+        return this.memoHits.get();
+    }
+
+    public long getJavaEvaluationCount()
+    {
+        return this.javaEvaluations.get();
+    }
+
+    public long getEngineEvaluationCount()
+    {
+        return this.engineEvaluations.get();
+    }
+
     private void removeContextAttributes(ScriptContext context)
     {
         context.removeAttribute("tick", ScriptContext.ENGINE_SCOPE);
@@ -96,11 +415,19 @@ public class VirtualChestJavaScriptManager
         context.removeAttribute("player", ScriptContext.ENGINE_SCOPE);
     }
 
+    private ScriptContext createContext()
+    {
+        // the bindings which never change are bound only once for each thread
+        ScriptContext context = new SimpleScriptContext();
+        context.setAttribute("server", Sponge.getServer(), ScriptContext.ENGINE_SCOPE);
+        return context;
+    }
+
     private ScriptContext getContext(Player player)
     {
-        try (Timing ignored = VirtualChestTimings.prepareRequirementBindings().startTiming())
+        try (Timing ignored = VirtualChestTimings.prepareRequirementBindings().startTimingIfSync())
         {
-            SimpleScriptContext context = this.tempContext;
+            ScriptContext context = this.contexts.get();
             VirtualChestPlaceholderManager placeholderManager = this.plugin.getPlaceholderManager();
             Function<String, Object> papi = s -> Text.of(placeholderManager.replacePlaceholder(player, s)).toPlain();
 
@@ -114,22 +441,57 @@ public class VirtualChestJavaScriptManager
 
     private Long getTickFromOpeningInventory(Player player)
     {
-        if (this.tickWhileOpeningInventory.containsKey(player))
+        Long tick = this.tickWhileOpeningInventory.get(player);
+        return Objects.isNull(tick) ? 0L : player.getWorld().getProperties().getTotalTime() - tick;
+    }
+
+    private class ExpressionBindings implements VirtualChestScriptExpression.Bindings
+    {
+        private final Player player;
+
+        private ExpressionBindings(Player player)
+        {
+            this.player = player;
+        }
+
+        @Override
+        public Player getPlayer()
+        {
+            return this.player;
+        }
+
+        @Override
+        public Object getTick()
+        {
+            return getTickFromOpeningInventory(this.player);
+        }
+
+        @Override
+        public Object papi(String key)
+        {
+            return Text.of(plugin.getPlaceholderManager().replacePlaceholder(this.player, key)).toPlain();
+        }
+    }
+
+    private static final class Memo
+    {
+        private final Object[] inputs;
+        private final boolean result;
+
+        private Memo(Object[] inputs, boolean result)
         {
-            return player.getWorld().getProperties().getTotalTime() - this.tickWhileOpeningInventory.get(player);
+            this.inputs = inputs;
+            this.result = result;
         }
-        return 0L;
     }
 
     private static class CompiledScriptNonsense extends CompiledScript
     {
         private final Object result;
-        private final ScriptEngine engine;
 
-        private CompiledScriptNonsense(ScriptEngine engine, Object result)
+        private CompiledScriptNonsense(Object result)
         {
             this.result = result;
-            this.engine = engine;
         }
 
         @Override
@@ -141,7 +503,7 @@ public class VirtualChestJavaScriptManager
         @Override
         public ScriptEngine getEngine()
         {
-            return this.engine;
+            return null;
         }
     }
 }
@@ -0,0 +1,36 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import javax.script.*;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The javascript engine shipped with java 8 to 14. Scripts in the subset recognized by
+ * {@link VirtualChestScriptExpression} are evaluated in plain java, and the others are left to it.
+ *
+ * @author ustc_zzzz
+ */
+public class VirtualChestNashornScriptEngine implements VirtualChestScriptEngine
+{
+    private final ScriptEngine scriptEngine;
+
+    public VirtualChestNashornScriptEngine()
+    {
+        ScriptEngine scriptEngine = new ScriptEngineManager(null).getEngineByName("nashorn");
+        this.scriptEngine = Objects.requireNonNull(scriptEngine, "Nashorn is not available in this java runtime");
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException
+    {
+        CompiledScript compiled = ((Compilable) this.scriptEngine).compile(script);
+        Optional<VirtualChestScriptExpression> expression = VirtualChestScriptExpression.parse(script);
+        return expression.isPresent() ? new VirtualChestCompiledExpression(expression.get(), compiled) : compiled;
+    }
+
+    @Override
+    public boolean isJavaScript()
+    {
+        return true;
+    }
+}
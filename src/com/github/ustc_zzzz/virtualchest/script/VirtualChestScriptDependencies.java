@@ -0,0 +1,91 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import com.github.ustc_zzzz.virtualchest.placeholder.VirtualChestPlaceholderManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.Text;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The inputs a requirement script reads, which are placeholders and permissions of the player. The
+ * result of such a script only changes if one of the inputs changes. Scripts reading anything else
+ * (such as {@code tick}, {@code server}, or other methods of {@code player}) have no dependencies.
+ *
+ * @author ustc_zzzz
+ */
+public final class VirtualChestScriptDependencies
+{
+    private static final String LITERAL = "(?:\"([^\"\\\\]*)\"|'([^'\\\\]*)')";
+    private static final Pattern PAPI = Pattern.compile("\\bpapi\\s*\\(\\s*" + LITERAL + "\\s*\\)");
+    private static final Pattern PERMISSION = Pattern.compile(
+            "\\bplayer\\s*\\.\\s*hasPermission\\s*\\(\\s*" + LITERAL + "\\s*\\)");
+    private static final Pattern IDENTIFIER = Pattern.compile("(?<![.\\w$])[A-Za-z_$][\\w$]*");
+    private static final Pattern RANDOM = Pattern.compile("\\.\\s*random\\b");
+
+    // globals whose values only depend on the arguments
+    private static final Set<String> PURE_IDENTIFIERS = ImmutableSet.of(
+            "true", "false", "null", "undefined", "NaN", "Infinity", "typeof", "Math", "Number", "String",
+            "Boolean", "parseInt", "parseFloat", "isNaN", "isFinite");
+
+    private final List<String> placeholderKeys;
+    private final List<String> permissions;
+
+    private VirtualChestScriptDependencies(List<String> placeholderKeys, List<String> permissions)
+    {
+        this.placeholderKeys = placeholderKeys;
+        this.permissions = permissions;
+    }
+
+    public static Optional<VirtualChestScriptDependencies> analyze(String script)
+    {
+        Set<String> placeholderKeys = new LinkedHashSet<>(), permissions = new LinkedHashSet<>();
+        String rest = collect(PERMISSION, collect(PAPI, script, placeholderKeys), permissions);
+        rest = VirtualChestJavaScriptManager.STRING_LITERAL.matcher(rest).replaceAll("\"\"");
+        if (VirtualChestJavaScriptManager.SIDE_EFFECT.matcher(rest).find() || RANDOM.matcher(rest).find())
+        {
+            return Optional.empty();
+        }
+        Matcher matcher = IDENTIFIER.matcher(rest);
+        while (matcher.find())
+        {
+            if (!PURE_IDENTIFIERS.contains(matcher.group()))
+            {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(new VirtualChestScriptDependencies(
+                ImmutableList.copyOf(placeholderKeys), ImmutableList.copyOf(permissions)));
+    }
+
+    private static String collect(Pattern pattern, String script, Set<String> arguments)
+    {
+        StringBuffer buffer = new StringBuffer();
+        Matcher matcher = pattern.matcher(script);
+        while (matcher.find())
+        {
+            arguments.add(Objects.isNull(matcher.group(1)) ? matcher.group(2) : matcher.group(1));
+            matcher.appendReplacement(buffer, "0");
+        }
+        return matcher.appendTail(buffer).toString();
+    }
+
+    public Object[] resolve(Player player, VirtualChestPlaceholderManager placeholderManager)
+    {
+        // placeholders are resolved in the same way as the 'papi' function in scripts
+        int size = this.placeholderKeys.size();
+        Object[] inputs = new Object[size + this.permissions.size()];
+        for (int i = 0; i < size; ++i)
+        {
+            inputs[i] = Text.of(placeholderManager.replacePlaceholder(player, this.placeholderKeys.get(i))).toPlain();
+        }
+        for (int i = 0; i < this.permissions.size(); ++i)
+        {
+            inputs[size + i] = player.hasPermission(this.permissions.get(i));
+        }
+        return inputs;
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * An engine of requirement scripts which could be selected in the config. Placeholders have been
+ * rewritten to invocations of {@code papi} before the scripts are compiled, and compiled scripts
+ * are evaluated in the contexts where {@code server}, {@code player}, {@code tick}, and
+ * {@code papi} are bound.
+ *
+ * @author ustc_zzzz
+ */
+public interface VirtualChestScriptEngine
+{
+    CompiledScript compile(String script) throws ScriptException;
+
+    // scripts of javascript engines could be combined into a single script
+    boolean isJavaScript();
+}
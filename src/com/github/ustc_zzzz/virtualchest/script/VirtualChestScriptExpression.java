@@ -0,0 +1,731 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import com.google.common.base.Strings;
+import org.spongepowered.api.entity.living.player.Player;
+
+import javax.script.ScriptException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * A requirement expression evaluated in plain Java instead of the JavaScript engine. Only a subset
+ * of JavaScript is recognized, and the evaluation follows the semantics of JavaScript:
+ * <ul>
+ * <li>number literals (decimal only), string literals, {@code true}, and {@code false}</li>
+ * <li>{@code tick}, {@code papi("...")}, and {@code player.hasPermission("...")}</li>
+ * <li>{@code + - * / %}, {@code < <= > >= == != === !==}, {@code ! && ||}, and parentheses</li>
+ * </ul>
+ * Scripts out of the subset are left to the JavaScript engine. If a value could not be handled
+ * exactly as the engine while evaluating (such as {@code ===} with java {@code long} values), a
+ * {@link FallbackException} is thrown so that the script will be evaluated by the engine. A
+ * standalone expression, which has no engine to fall back to, converts the values of {@code tick}
+ * and {@code papi} to javascript primitives instead, so it never throws the exception.
+ *
+ * @author ustc_zzzz
+ */
+public final class VirtualChestScriptExpression
+{
+    private static final Pattern DECIMAL = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+    private static final Pattern HEX = Pattern.compile("0[xX][0-9a-fA-F]+");
+
+    private final Node root;
+
+    private VirtualChestScriptExpression(Node root)
+    {
+        this.root = root;
+    }
+
+    public static Optional<VirtualChestScriptExpression> parse(String script)
+    {
+        try
+        {
+            return Optional.of(compile(script, false));
+        }
+        catch (ScriptException e)
+        {
+            return Optional.empty();
+        }
+    }
+
+    public static VirtualChestScriptExpression compile(String script, boolean isStandalone) throws ScriptException
+    {
+        try
+        {
+            Parser parser = new Parser(script, isStandalone);
+            Node root = parser.parseOr();
+            parser.skip(";");
+            if (!parser.isEnd())
+            {
+                throw new IllegalArgumentException("Unexpected character at " + parser.index);
+            }
+            return new VirtualChestScriptExpression(root);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ScriptException(e.getMessage());
+        }
+    }
+
+    public Object evaluate(Bindings bindings) throws FallbackException
+    {
+        return this.root.eval(bindings);
+    }
+
+    public interface Bindings
+    {
+        Player getPlayer();
+
+        Object getTick();
+
+        Object papi(String key);
+    }
+
+    public static final class FallbackException extends RuntimeException
+    {
+        private static final FallbackException INSTANCE = new FallbackException();
+
+        private FallbackException()
+        {
+            super("The expression should be evaluated by the script engine", null, false, false);
+        }
+    }
+
+    private interface Node
+    {
+        Object eval(Bindings bindings);
+    }
+
+    private static final class Parser
+    {
+        private final String text;
+        private final boolean isStandalone;
+        private int index = 0;
+
+        private Parser(String text, boolean isStandalone)
+        {
+            this.text = text;
+            this.isStandalone = isStandalone;
+        }
+
+        private boolean isEnd()
+        {
+            this.skipWhitespaces();
+            return this.index >= this.text.length();
+        }
+
+        private void skipWhitespaces()
+        {
+            while (this.index < this.text.length() && Character.isWhitespace(this.text.charAt(this.index)))
+            {
+                ++this.index;
+            }
+        }
+
+        private boolean peek(String token)
+        {
+            this.skipWhitespaces();
+            return this.text.startsWith(token, this.index);
+        }
+
+        private boolean skip(String token)
+        {
+            if (this.peek(token))
+            {
+                this.index += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token)
+        {
+            if (!this.skip(token))
+            {
+                throw new IllegalArgumentException("Expected " + token + " at " + this.index);
+            }
+        }
+
+        private Node parseOr()
+        {
+            Node left = this.parseAnd();
+            while (this.skip("||"))
+            {
+                Node l = left, r = this.parseAnd();
+                left = b ->
+                {
+                    Object value = l.eval(b);
+                    return toBoolean(value) ? value : r.eval(b);
+                };
+            }
+            return left;
+        }
+
+        private Node parseAnd()
+        {
+            Node left = this.parseEquality();
+            while (this.skip("&&"))
+            {
+                Node l = left, r = this.parseEquality();
+                left = b ->
+                {
+                    Object value = l.eval(b);
+                    return toBoolean(value) ? r.eval(b) : value;
+                };
+            }
+            return left;
+        }
+
+        private Node parseEquality()
+        {
+            Node left = this.parseRelational();
+            while (true)
+            {
+                Node l = left;
+                if (this.skip("==="))
+                {
+                    Node r = this.parseRelational();
+                    left = b -> strictEquals(l.eval(b), r.eval(b));
+                }
+                else if (this.skip("!=="))
+                {
+                    Node r = this.parseRelational();
+                    left = b -> !strictEquals(l.eval(b), r.eval(b));
+                }
+                else if (this.skip("=="))
+                {
+                    Node r = this.parseRelational();
+                    left = b -> looseEquals(l.eval(b), r.eval(b));
+                }
+                else if (this.skip("!="))
+                {
+                    Node r = this.parseRelational();
+                    left = b -> !looseEquals(l.eval(b), r.eval(b));
+                }
+                else
+                {
+                    return left;
+                }
+            }
+        }
+
+        private Node parseRelational()
+        {
+            Node left = this.parseAdditive();
+            while (true)
+            {
+                Node l = left;
+                if (this.skip("<="))
+                {
+                    Node r = this.parseAdditive();
+                    left = b -> less(l.eval(b), r.eval(b), true);
+                }
+                else if (this.skip(">="))
+                {
+                    Node r = this.parseAdditive();
+                    left = b -> compare(l.eval(b), r.eval(b), true);
+                }
+                else if (this.skip("<"))
+                {
+                    Node r = this.parseAdditive();
+                    left = b -> less(l.eval(b), r.eval(b), false);
+                }
+                else if (this.skip(">"))
+                {
+                    Node r = this.parseAdditive();
+                    left = b -> compare(l.eval(b), r.eval(b), false);
+                }
+                else
+                {
+                    return left;
+                }
+            }
+        }
+
+        private Node parseAdditive()
+        {
+            Node left = this.parseMultiplicative();
+            while (true)
+            {
+                Node l = left;
+                if (this.skip("+"))
+                {
+                    Node r = this.parseMultiplicative();
+                    left = b -> add(l.eval(b), r.eval(b));
+                }
+                else if (this.skip("-"))
+                {
+                    Node r = this.parseMultiplicative();
+                    left = b -> toNumber(l.eval(b)) - toNumber(r.eval(b));
+                }
+                else
+                {
+                    return left;
+                }
+            }
+        }
+
+        private Node parseMultiplicative()
+        {
+            Node left = this.parseUnary();
+            while (true)
+            {
+                Node l = left;
+                if (this.skip("*"))
+                {
+                    Node r = this.parseUnary();
+                    left = b -> toNumber(l.eval(b)) * toNumber(r.eval(b));
+                }
+                else if (this.skip("/"))
+                {
+                    Node r = this.parseUnary();
+                    left = b -> toNumber(l.eval(b)) / toNumber(r.eval(b));
+                }
+                else if (this.skip("%"))
+                {
+                    Node r = this.parseUnary();
+                    left = b -> toNumber(l.eval(b)) % toNumber(r.eval(b));
+                }
+                else
+                {
+                    return left;
+                }
+            }
+        }
+
+        private Node parseUnary()
+        {
+            if (this.skip("!"))
+            {
+                Node operand = this.parseUnary();
+                return b -> !toBoolean(operand.eval(b));
+            }
+            if (this.skip("-"))
+            {
+                Node operand = this.parseUnary();
+                return b -> -toNumber(operand.eval(b));
+            }
+            if (this.skip("+"))
+            {
+                Node operand = this.parseUnary();
+                return b -> toNumber(operand.eval(b));
+            }
+            return this.parsePrimary();
+        }
+
+        private Node parsePrimary()
+        {
+            if (this.skip("("))
+            {
+                Node node = this.parseOr();
+                this.expect(")");
+                return node;
+            }
+            this.skipWhitespaces();
+            if (this.index >= this.text.length())
+            {
+                throw new IllegalArgumentException("Unexpected end of the expression");
+            }
+            char c = this.text.charAt(this.index);
+            if (c == '"' || c == '\'')
+            {
+                String value = this.parseString();
+                return b -> value;
+            }
+            if (c >= '0' && c <= '9' || c == '.')
+            {
+                Double value = this.parseNumber();
+                return b -> value;
+            }
+            String identifier = this.parseIdentifier();
+            switch (identifier)
+            {
+                case "true":
+                    return b -> Boolean.TRUE;
+                case "false":
+                    return b -> Boolean.FALSE;
+                case "tick":
+                    return this.isStandalone ? b -> toPrimitive(b.getTick()) : Bindings::getTick;
+                case "papi":
+                {
+                    this.expect("(");
+                    String key = this.parseStringArgument();
+                    return this.isStandalone ? b -> toPrimitive(b.papi(key)) : b -> b.papi(key);
+                }
+                case "player":
+                {
+                    this.expect(".");
+                    if (!"hasPermission".equals(this.parseIdentifier()))
+                    {
+                        throw new IllegalArgumentException("Unsupported method of player");
+                    }
+                    this.expect("(");
+                    String permission = this.parseStringArgument();
+                    return b -> b.getPlayer().hasPermission(permission);
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported identifier: " + identifier);
+            }
+        }
+
+        private String parseStringArgument()
+        {
+            this.skipWhitespaces();
+            String value = this.parseString();
+            this.expect(")");
+            return value;
+        }
+
+        private String parseIdentifier()
+        {
+            this.skipWhitespaces();
+            int start = this.index;
+            while (this.index < this.text.length() && Character.isJavaIdentifierPart(this.text.charAt(this.index)))
+            {
+                ++this.index;
+            }
+            if (start == this.index)
+            {
+                throw new IllegalArgumentException("Expected an identifier at " + start);
+            }
+            return this.text.substring(start, this.index);
+        }
+
+        private Double parseNumber()
+        {
+            int start = this.index;
+            while (this.index < this.text.length() && isNumberPart(this.text.charAt(this.index)))
+            {
+                ++this.index;
+            }
+            String literal = this.text.substring(start, this.index);
+            // octal literals such as '010' are not supported
+            if (literal.length() > 1 && literal.charAt(0) == '0' && Character.isDigit(literal.charAt(1)))
+            {
+                throw new IllegalArgumentException("Unsupported number literal: " + literal);
+            }
+            if (!DECIMAL.matcher(literal).matches())
+            {
+                throw new IllegalArgumentException("Unsupported number literal: " + literal);
+            }
+            return Double.valueOf(literal);
+        }
+
+        private String parseString()
+        {
+            char quote = this.text.charAt(this.index++);
+            if (quote != '"' && quote != '\'')
+            {
+                throw new IllegalArgumentException("Expected a string at " + (this.index - 1));
+            }
+            StringBuilder builder = new StringBuilder();
+            while (this.index < this.text.length())
+            {
+                char c = this.text.charAt(this.index++);
+                if (c == quote)
+                {
+                    return builder.toString();
+                }
+                if (c == '\\' && this.index < this.text.length())
+                {
+                    char escaped = this.text.charAt(this.index++);
+                    switch (escaped)
+                    {
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case '"':
+                        case '\'':
+                        case '\\':
+                        case '/':
+                            builder.append(escaped);
+                            break;
+                        case 'u':
+                            if (this.index + 4 > this.text.length())
+                            {
+                                throw new IllegalArgumentException("Unsupported escape sequence");
+                            }
+                            String hex = this.text.substring(this.index, this.index + 4);
+                            builder.append((char) Integer.parseInt(hex, 16));
+                            this.index += 4;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unsupported escape sequence: \\" + escaped);
+                    }
+                }
+                else if (c == '\n' || c == '\r')
+                {
+                    throw new IllegalArgumentException("Unterminated string literal");
+                }
+                else
+                {
+                    builder.append(c);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string literal");
+        }
+
+        private static boolean isNumberPart(char c)
+        {
+            return c >= '0' && c <= '9' || c == '.' || Character.isLetter(c);
+        }
+    }
+
+    private static Object toPrimitive(Object value)
+    {
+        // javascript numbers are always doubles, and other objects are converted by their strings
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String || value instanceof Boolean)
+        {
+            return value;
+        }
+        return String.valueOf(value);
+    }
+
+    private static boolean toBoolean(Object value)
+    {
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+        if (value instanceof Number)
+        {
+            double number = ((Number) value).doubleValue();
+            return number != 0 && !Double.isNaN(number);
+        }
+        if (value instanceof String)
+        {
+            return !((String) value).isEmpty();
+        }
+        return Objects.nonNull(value);
+    }
+
+    private static double toNumber(Object value)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value ? 1 : 0;
+        }
+        if (value instanceof String)
+        {
+            String text = trimJavaScriptWhitespaces((String) value);
+            if (text.isEmpty())
+            {
+                return 0;
+            }
+            if (DECIMAL.matcher(text).matches())
+            {
+                return Double.parseDouble(text);
+            }
+            if (HEX.matcher(text).matches())
+            {
+                return new BigInteger(text.substring(2), 16).doubleValue(); // may exceed the range of long
+            }
+            switch (text)
+            {
+                case "Infinity":
+                case "+Infinity":
+                    return Double.POSITIVE_INFINITY;
+                case "-Infinity":
+                    return Double.NEGATIVE_INFINITY;
+                default:
+                    return Double.NaN;
+            }
+        }
+        throw FallbackException.INSTANCE;
+    }
+
+    private static String trimJavaScriptWhitespaces(String text)
+    {
+        // unlike String#trim, unicode spaces are stripped but control characters are not
+        int start = 0, end = text.length();
+        while (start < end && isJavaScriptWhitespace(text.charAt(start)))
+        {
+            ++start;
+        }
+        while (end > start && isJavaScriptWhitespace(text.charAt(end - 1)))
+        {
+            --end;
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isJavaScriptWhitespace(char c)
+    {
+        switch (c)
+        {
+            case '\t':
+            case '\n':
+            case '\u000B':
+            case '\f':
+            case '\r':
+            case '\u00A0':
+            case '\u2028':
+            case '\u2029':
+            case '\uFEFF':
+                return true;
+            default:
+                return Character.getType(c) == Character.SPACE_SEPARATOR;
+        }
+    }
+
+    private static String toJavaScriptString(Object value)
+    {
+        if (value instanceof String || value instanceof Boolean)
+        {
+            return value.toString();
+        }
+        if (value instanceof Long || value instanceof Integer)
+        {
+            return value.toString(); // the engine formats java integers by themselves
+        }
+        if (value instanceof Number)
+        {
+            return toJavaScriptString(((Number) value).doubleValue());
+        }
+        throw FallbackException.INSTANCE;
+    }
+
+    private static String toJavaScriptString(double number)
+    {
+        if (Double.isNaN(number))
+        {
+            return "NaN";
+        }
+        if (Double.isInfinite(number))
+        {
+            return number > 0 ? "Infinity" : "-Infinity";
+        }
+        if (number == Math.rint(number) && Math.abs(number) < 1e15)
+        {
+            return Long.toString((long) number); // also formats negative zero as '0'
+        }
+        if (number < 0)
+        {
+            return "-" + toJavaScriptString(-number);
+        }
+        // the shortest digits which are parsed back to the same number, as Number#toString in javascript
+        BigDecimal exact = new BigDecimal(number);
+        BigDecimal decimal = exact.round(new MathContext(17, RoundingMode.HALF_EVEN));
+        for (int precision = 1; precision < 17; ++precision)
+        {
+            BigDecimal rounded = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+            if (rounded.doubleValue() == number)
+            {
+                decimal = rounded;
+                break;
+            }
+        }
+        decimal = decimal.stripTrailingZeros();
+        String digits = decimal.unscaledValue().toString();
+        int k = digits.length(), n = k - decimal.scale();
+        if (k <= n && n <= 21)
+        {
+            return digits + Strings.repeat("0", n - k);
+        }
+        if (0 < n && n <= 21)
+        {
+            return digits.substring(0, n) + "." + digits.substring(n);
+        }
+        if (-6 < n && n <= 0)
+        {
+            return "0." + Strings.repeat("0", -n) + digits;
+        }
+        String exponent = (n > 0 ? "e+" : "e-") + Math.abs(n - 1);
+        return k == 1 ? digits + exponent : digits.charAt(0) + "." + digits.substring(1) + exponent;
+    }
+
+    private static Object add(Object left, Object right)
+    {
+        if (left instanceof String || right instanceof String)
+        {
+            return toJavaScriptString(left) + toJavaScriptString(right);
+        }
+        return toNumber(left) + toNumber(right);
+    }
+
+    private static boolean less(Object less, Object greater, boolean orEqual)
+    {
+        return compare(greater, less, orEqual);
+    }
+
+    private static boolean compare(Object greater, Object less, boolean orEqual)
+    {
+        if (greater instanceof String && less instanceof String)
+        {
+            int result = ((String) greater).compareTo((String) less);
+            return orEqual ? result >= 0 : result > 0;
+        }
+        double g = toNumber(greater), l = toNumber(less);
+        return orEqual ? g >= l : g > l; // comparisons with NaN are always false
+    }
+
+    private static boolean strictEquals(Object left, Object right)
+    {
+        // the script engine does not treat long values as javascript numbers in strict equality
+        if (left instanceof Long || right instanceof Long)
+        {
+            throw FallbackException.INSTANCE;
+        }
+        if (left instanceof Number && right instanceof Number)
+        {
+            return ((Number) left).doubleValue() == ((Number) right).doubleValue();
+        }
+        if (left instanceof String && right instanceof String || left instanceof Boolean && right instanceof Boolean)
+        {
+            return left.equals(right);
+        }
+        if (left instanceof Number || left instanceof String || left instanceof Boolean)
+        {
+            return false;
+        }
+        throw FallbackException.INSTANCE;
+    }
+
+    private static boolean looseEquals(Object left, Object right)
+    {
+        if (left instanceof Boolean)
+        {
+            return looseEquals(toNumber(left), right);
+        }
+        if (right instanceof Boolean)
+        {
+            return looseEquals(left, toNumber(right));
+        }
+        if (left instanceof String && right instanceof String)
+        {
+            return left.equals(right);
+        }
+        if (left instanceof Number || left instanceof String)
+        {
+            if (right instanceof Number || right instanceof String)
+            {
+                return toNumber(left) == toNumber(right);
+            }
+        }
+        throw FallbackException.INSTANCE;
+    }
+}
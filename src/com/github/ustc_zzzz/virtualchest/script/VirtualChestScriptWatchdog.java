@@ -0,0 +1,225 @@
+package com.github.ustc_zzzz.virtualchest.script;
+
+import com.github.ustc_zzzz.virtualchest.VirtualChestPlugin;
+import com.github.ustc_zzzz.virtualchest.inventory.VirtualChestInventory;
+import com.github.ustc_zzzz.virtualchest.translation.VirtualChestTranslation;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The cost of every requirement script, keyed by the chest GUI and the slot it belongs to. A script
+ * could not be interrupted while it is being evaluated, so the time budget is checked after each
+ * evaluation, and scripts which exceed the budget too many times are disabled until next reload.
+ *
+ * @author ustc_zzzz
+ */
+public class VirtualChestScriptWatchdog
+{
+    public static final int COMBINED_SLOT = -1;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private static final double DEFAULT_BUDGET_MILLIS = 5.0;
+    private static final int DEFAULT_DISABLE_AFTER = 0;
+
+    private final Logger logger;
+    private final VirtualChestTranslation translation;
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    private double budgetMillis = DEFAULT_BUDGET_MILLIS;
+    private int disableAfter = DEFAULT_DISABLE_AFTER;
+
+    public VirtualChestScriptWatchdog(VirtualChestPlugin plugin)
+    {
+        this.logger = plugin.getLogger();
+        this.translation = plugin.getTranslation();
+    }
+
+    public Entry getEntry(String name, int slot, String script)
+    {
+        return this.entries.computeIfAbsent(new Key(name, slot, script), Entry::new);
+    }
+
+    public List<Entry> getMostExpensiveEntries(int count)
+    {
+        Comparator<Entry> comparator = Comparator.comparingLong(Entry::getTotalNanos);
+        return this.entries.values().stream().sorted(comparator.reversed()).limit(count).collect(Collectors.toList());
+    }
+
+    public long getBudgetNanos()
+    {
+        return (long) (TimeUnit.MILLISECONDS.toNanos(1) * this.budgetMillis);
+    }
+
+    public void loadConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.budgetMillis = Math.max(0, node.getNode("budget-millis").getDouble(DEFAULT_BUDGET_MILLIS));
+        this.disableAfter = Math.max(0, node.getNode("disable-after").getInt(DEFAULT_DISABLE_AFTER));
+        this.entries.clear();
+    }
+
+    public void saveConfig(CommentedConfigurationNode node) throws IOException
+    {
+        this.translation.withComment(node, "virtualchest.config.scriptWatchdog.comment");
+        this.translation.withComment(node.getNode("budget-millis"),
+                "virtualchest.config.scriptWatchdog.budgetMillis.comment").setValue(this.budgetMillis);
+        this.translation.withComment(node.getNode("disable-after"),
+                "virtualchest.config.scriptWatchdog.disableAfter.comment").setValue(this.disableAfter);
+    }
+
+    private static int toBucket(long nanos)
+    {
+        // buckets grow exponentially, and each of them is split into several linear sub-buckets
+        if (nanos < SUB_BUCKET_COUNT)
+        {
+            return (int) Math.max(0, nanos);
+        }
+        int bits = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (bits - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return ((bits - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long fromBucket(int bucket)
+    {
+        if (bucket < SUB_BUCKET_COUNT)
+        {
+            return bucket;
+        }
+        int bits = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKET_COUNT + (bucket & (SUB_BUCKET_COUNT - 1))) << (bits - SUB_BUCKET_BITS);
+    }
+
+    private static final class Key
+    {
+        private final String name;
+        private final int slot;
+        private final String script;
+
+        private Key(String name, int slot, String script)
+        {
+            this.name = name;
+            this.slot = slot;
+            this.script = script;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (o == null || this.getClass() != o.getClass())
+            {
+                return false;
+            }
+            Key that = (Key) o;
+            return this.slot == that.slot && this.name.equals(that.name) && this.script.equals(that.script);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.name, this.slot, this.script);
+        }
+    }
+
+    public final class Entry
+    {
+        private final Key key;
+        private final long[] histogram = new long[BUCKET_COUNT];
+
+        private long count = 0;
+        private long totalNanos = 0;
+        private int violations = 0;
+        private volatile boolean isDisabled = false;
+
+        private Entry(Key key)
+        {
+            this.key = key;
+        }
+
+        public String getName()
+        {
+            return this.key.name;
+        }
+
+        public String getSlotKey()
+        {
+            // a combined script contains the requirements of all the slots
+            return this.key.slot == COMBINED_SLOT ? "*" : VirtualChestInventory.slotIndexToKey(this.key.slot);
+        }
+
+        public String getScript()
+        {
+            return this.key.script;
+        }
+
+        public boolean isDisabled()
+        {
+            return this.isDisabled;
+        }
+
+        public synchronized long getCount()
+        {
+            return this.count;
+        }
+
+        public synchronized long getTotalNanos()
+        {
+            return this.totalNanos;
+        }
+
+        public synchronized long getPercentileNanos(double percentile)
+        {
+            long rank = (long) Math.ceil(this.count * percentile), seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket)
+            {
+                seen += this.histogram[bucket];
+                if (seen >= rank && seen > 0)
+                {
+                    // the upper bound of the bucket, so the result is never underestimated
+                    return bucket + 1 < BUCKET_COUNT ? fromBucket(bucket + 1) - 1 : Long.MAX_VALUE;
+                }
+            }
+            return 0;
+        }
+
+        public void record(long nanos)
+        {
+            long budget = getBudgetNanos();
+            int violations;
+            synchronized (this)
+            {
+                this.count += 1;
+                this.totalNanos += nanos;
+                this.histogram[toBucket(nanos)] += 1;
+                if (budget <= 0 || nanos <= budget)
+                {
+                    return;
+                }
+                violations = ++this.violations;
+            }
+            if (violations == 1)
+            {
+                logger.warn("Requirement script at {} of chest GUI {} took {} ms, exceeding the budget of {} ms: {}",
+                        this.getSlotKey(), this.key.name, nanos / 1E6, budget / 1E6, this.key.script);
+            }
+            if (violations == disableAfter)
+            {
+                this.isDisabled = true;
+                logger.warn("Requirement script at {} of chest GUI {} has exceeded the budget {} time(s), " +
+                        "it is disabled until next reload: {}", this.getSlotKey(), this.key.name, violations,
+                        this.key.script);
+            }
+        }
+    }
+}
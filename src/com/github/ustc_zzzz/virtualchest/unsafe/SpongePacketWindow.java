@@ -0,0 +1,407 @@
+package com.github.ustc_zzzz.virtualchest.unsafe;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.text.Text;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+/**
+ * A chest window which only exists on the client. The window is opened and filled by sending packets
+ * directly, and the click and close packets for the window are intercepted before they reach the
+ * server, so there is no inventory or container on the server for the window.
+ *
+ * @author ustc_zzzz
+ */
+public final class SpongePacketWindow
+{
+    private static final int WINDOW_ID = 127; // vanilla window ids are always between 1 and 100
+    private static final int PLAYER_SLOT_COUNT = 36;
+    private static final String HANDLER_NAME = "virtualchest_packet_window";
+    private static final String VANILLA_HANDLER_NAME = "packet_handler";
+
+    private static final Optional<Throwable> UNSUPPORTED_CAUSE = loadReflection();
+
+    private final int rows;
+    private final Object player;
+    private final Object connection;
+    private final Channel channel;
+    private final Listener listener;
+    private final Executor executor;
+    private final Object[] slots;
+
+    private volatile boolean isOpen = false;
+    private Object openPacket = null;
+
+    private SpongePacketWindow(Player player, int rows, Listener listener, Executor executor) throws Throwable
+    {
+        this.rows = rows;
+        this.player = player;
+        this.listener = listener;
+        this.executor = executor;
+        this.connection = Reflection.CONNECTION.get(player);
+        this.channel = (Channel) Reflection.CHANNEL.get(Reflection.NET_MANAGER.get(this.connection));
+        this.slots = new Object[rows * 9];
+        for (int i = 0; i < this.slots.length; ++i)
+        {
+            this.slots[i] = Reflection.EMPTY_STACK;
+        }
+    }
+
+    public static boolean isSupported()
+    {
+        return !UNSUPPORTED_CAUSE.isPresent();
+    }
+
+    public static Optional<Throwable> getUnsupportedCause()
+    {
+        return UNSUPPORTED_CAUSE;
+    }
+
+    private static Optional<Throwable> loadReflection()
+    {
+        try
+        {
+            // the reflection is done in another class, so a failure does not break this class
+            Class.forName(Reflection.class.getName(), true, SpongePacketWindow.class.getClassLoader());
+            return Optional.empty();
+        }
+        catch (ExceptionInInitializerError e)
+        {
+            return Optional.of(e.getCause());
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return Optional.of(e);
+        }
+    }
+
+    public static boolean isDefaultContainerOpen(Player player)
+    {
+        try
+        {
+            return Reflection.OPEN_CONTAINER.get(player) == Reflection.INVENTORY_CONTAINER.get(player);
+        }
+        catch (Throwable throwable)
+        {
+            throw new UnsupportedOperationException(throwable);
+        }
+    }
+
+    public static SpongePacketWindow open(Player player, Text title, int rows, Listener listener, Executor executor)
+    {
+        try
+        {
+            SpongePacketWindow window = new SpongePacketWindow(player, rows, listener, executor);
+            window.openPacket = Reflection.OPEN_WINDOW.newInstance(WINDOW_ID, "minecraft:container",
+                    Reflection.TO_COMPONENT.invoke(title), rows * 9);
+            window.isOpen = true;
+            // installed in the event loop after the packets already sent, which are not for the window
+            Handler handler = window.new Handler();
+            window.channel.eventLoop().execute(() -> window.channel.pipeline()
+                    .addBefore(VANILLA_HANDLER_NAME, HANDLER_NAME, handler));
+            window.sendPacket(window.openPacket);
+            window.resend();
+            return window;
+        }
+        catch (Throwable throwable)
+        {
+            throw new UnsupportedOperationException(throwable);
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return this.isOpen;
+    }
+
+    public void setSlot(int index, ItemStackSnapshot snapshot)
+    {
+        try
+        {
+            Object empty = Reflection.EMPTY_STACK;
+            Object stack = snapshot.isEmpty() ? empty : Reflection.FROM_SNAPSHOT_TO_NATIVE.invoke(snapshot);
+            this.slots[index] = stack;
+            if (this.isOpen)
+            {
+                Object copy = Reflection.COPY_STACK.invoke(stack);
+                this.sendPacket(Reflection.SET_SLOT.newInstance(WINDOW_ID, index, copy));
+            }
+        }
+        catch (Throwable throwable)
+        {
+            throw new UnsupportedOperationException(throwable);
+        }
+    }
+
+    public void close()
+    {
+        if (this.isOpen)
+        {
+            this.isOpen = false;
+            try
+            {
+                this.sendPacket(Reflection.CLOSE_WINDOW.newInstance(WINDOW_ID));
+            }
+            catch (Throwable throwable)
+            {
+                throw new UnsupportedOperationException(throwable);
+            }
+            finally
+            {
+                this.uninstall();
+            }
+        }
+    }
+
+    public void release()
+    {
+        this.isOpen = false;
+        this.uninstall();
+    }
+
+    private void uninstall()
+    {
+        this.channel.eventLoop().execute(() ->
+        {
+            if (this.channel.pipeline().get(HANDLER_NAME) != null)
+            {
+                this.channel.pipeline().remove(HANDLER_NAME);
+            }
+        });
+    }
+
+    private void resend() throws Throwable
+    {
+        // the client discards its own changes of the window, so both the window and the cursor are resent
+        Object inventory = Reflection.PLAYER_INVENTORY.get(this.player);
+        int size = this.rows * 9 + PLAYER_SLOT_COUNT;
+        @SuppressWarnings("unchecked")
+        List<Object> stacks = (List<Object>) Reflection.NON_NULL_LIST_WITH_SIZE.invoke(size, Reflection.EMPTY_STACK);
+        for (int i = 0; i < this.slots.length; ++i)
+        {
+            stacks.set(i, Reflection.COPY_STACK.invoke(this.slots[i]));
+        }
+        for (int i = 0; i < PLAYER_SLOT_COUNT; ++i)
+        {
+            // the main inventory (index 9 to 35) first, and then the hotbar (index 0 to 8)
+            int inventoryIndex = (i + 9) % PLAYER_SLOT_COUNT;
+            Object stack = Reflection.GET_STACK_IN_SLOT.invoke(inventory, inventoryIndex);
+            stacks.set(this.slots.length + i, Reflection.COPY_STACK.invoke(stack));
+        }
+        this.sendPacket(Reflection.WINDOW_ITEMS.newInstance(WINDOW_ID, stacks));
+        this.sendPacket(Reflection.SET_SLOT.newInstance(-1, -1, Reflection.EMPTY_STACK));
+    }
+
+    private void sendPacket(Object packet) throws Throwable
+    {
+        Reflection.SEND_PACKET.invoke(this.connection, packet);
+    }
+
+    private void onClick(Object packet) throws Throwable
+    {
+        if (this.isOpen)
+        {
+            this.resend();
+            int slotIndex = (int) Reflection.CLICK_WINDOW_GET_SLOT_ID.invoke(packet);
+            if (slotIndex >= 0 && slotIndex < this.slots.length)
+            {
+                int button = (int) Reflection.CLICK_WINDOW_GET_USED_BUTTON.invoke(packet);
+                String clickType = String.valueOf(Reflection.CLICK_WINDOW_GET_CLICK_TYPE.invoke(packet));
+                boolean isShift = "QUICK_MOVE".equals(clickType);
+                boolean isPrimary = (isShift || "PICKUP".equals(clickType)) && button == 0;
+                boolean isSecondary = (isShift || "PICKUP".equals(clickType)) && button == 1;
+                this.listener.onClick(slotIndex, isShift, isPrimary, isSecondary);
+            }
+        }
+    }
+
+    private void onClose()
+    {
+        if (this.isOpen)
+        {
+            this.isOpen = false;
+            this.uninstall();
+            this.listener.onClose();
+        }
+    }
+
+    public interface Listener
+    {
+        void onClick(int slotIndex, boolean isShift, boolean isPrimary, boolean isSecondary);
+
+        void onClose();
+    }
+
+    private class Handler extends ChannelDuplexHandler
+    {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (Reflection.CLICK_WINDOW_CLASS.isInstance(msg) && isWindowPacket(msg))
+            {
+                executor.execute(() -> this.run(() -> SpongePacketWindow.this.onClick(msg)));
+                return;
+            }
+            boolean isClose = Reflection.CLOSE_WINDOW_CLASS.isInstance(msg);
+            if (isClose && Reflection.CLOSE_WINDOW_ID.getInt(msg) == WINDOW_ID)
+            {
+                executor.execute(SpongePacketWindow.this::onClose);
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+        {
+            // another window opened or closed by the server replaces this window on the client
+            boolean isOtherOpen = Reflection.S_OPEN_WINDOW_CLASS.isInstance(msg) && msg != openPacket;
+            if (isOtherOpen || Reflection.S_CLOSE_WINDOW_CLASS.isInstance(msg) && isOpen)
+            {
+                executor.execute(SpongePacketWindow.this::onClose);
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        private boolean isWindowPacket(Object msg)
+        {
+            try
+            {
+                return (int) Reflection.CLICK_WINDOW_GET_WINDOW_ID.invoke(msg) == WINDOW_ID;
+            }
+            catch (Throwable throwable)
+            {
+                throw new UnsupportedOperationException(throwable);
+            }
+        }
+
+        private void run(ThrowingRunnable runnable)
+        {
+            try
+            {
+                runnable.run();
+            }
+            catch (Throwable throwable)
+            {
+                throw new UnsupportedOperationException(throwable);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable
+    {
+        void run() throws Throwable;
+    }
+
+    private static final class Reflection
+    {
+        private static final Field CONNECTION;
+        private static final Field NET_MANAGER;
+        private static final Field CHANNEL;
+        private static final Field PLAYER_INVENTORY;
+        private static final Field OPEN_CONTAINER;
+        private static final Field INVENTORY_CONTAINER;
+        private static final Field CLOSE_WINDOW_ID;
+
+        private static final Class<?> CLICK_WINDOW_CLASS;
+        private static final Class<?> CLOSE_WINDOW_CLASS;
+        private static final Class<?> S_OPEN_WINDOW_CLASS;
+        private static final Class<?> S_CLOSE_WINDOW_CLASS;
+
+        private static final MethodHandle SEND_PACKET;
+        private static final MethodHandle GET_STACK_IN_SLOT;
+        private static final MethodHandle COPY_STACK;
+        private static final MethodHandle TO_COMPONENT;
+        private static final MethodHandle FROM_SNAPSHOT_TO_NATIVE;
+        private static final MethodHandle NON_NULL_LIST_WITH_SIZE;
+        private static final MethodHandle CLICK_WINDOW_GET_WINDOW_ID;
+        private static final MethodHandle CLICK_WINDOW_GET_SLOT_ID;
+        private static final MethodHandle CLICK_WINDOW_GET_USED_BUTTON;
+        private static final MethodHandle CLICK_WINDOW_GET_CLICK_TYPE;
+
+        private static final Constructor<?> OPEN_WINDOW;
+        private static final Constructor<?> CLOSE_WINDOW;
+        private static final Constructor<?> SET_SLOT;
+        private static final Constructor<?> WINDOW_ITEMS;
+
+        private static final Object EMPTY_STACK;
+
+        static
+        {
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+                Class<?> playerClass = Class.forName("net.minecraft.entity.player.EntityPlayer");
+                Class<?> playerMPClass = Class.forName("net.minecraft.entity.player.EntityPlayerMP");
+                Class<?> connectionClass = Class.forName("net.minecraft.network.NetHandlerPlayServer");
+                Class<?> netManagerClass = Class.forName("net.minecraft.network.NetworkManager");
+                Class<?> inventoryClass = Class.forName("net.minecraft.entity.player.InventoryPlayer");
+                Class<?> stackClass = Class.forName("net.minecraft.item.ItemStack");
+                Class<?> packetClass = Class.forName("net.minecraft.network.Packet");
+                Class<?> componentClass = Class.forName("net.minecraft.util.text.ITextComponent");
+                Class<?> nonNullListClass = Class.forName("net.minecraft.util.NonNullList");
+                Class<?> textsClass = Class.forName("org.spongepowered.common.text.SpongeTexts");
+                Class<?> stackUtilClass = Class.forName("org.spongepowered.common.item.inventory.util.ItemStackUtil");
+
+                CLICK_WINDOW_CLASS = Class.forName("net.minecraft.network.play.client.CPacketClickWindow");
+                CLOSE_WINDOW_CLASS = Class.forName("net.minecraft.network.play.client.CPacketCloseWindow");
+                S_OPEN_WINDOW_CLASS = Class.forName("net.minecraft.network.play.server.SPacketOpenWindow");
+                S_CLOSE_WINDOW_CLASS = Class.forName("net.minecraft.network.play.server.SPacketCloseWindow");
+                Class<?> setSlotClass = Class.forName("net.minecraft.network.play.server.SPacketSetSlot");
+                Class<?> windowItemsClass = Class.forName("net.minecraft.network.play.server.SPacketWindowItems");
+
+                CONNECTION = getField(playerMPClass, "field_71135_a");
+                NET_MANAGER = getField(connectionClass, "field_147371_a");
+                CHANNEL = getField(netManagerClass, "field_150746_k");
+                PLAYER_INVENTORY = getField(playerClass, "field_71071_by");
+                OPEN_CONTAINER = getField(playerClass, "field_71070_bA");
+                INVENTORY_CONTAINER = getField(playerClass, "field_71069_bz");
+                CLOSE_WINDOW_ID = getField(CLOSE_WINDOW_CLASS, "field_149556_a");
+
+                SEND_PACKET = lookup.unreflect(connectionClass.getMethod("func_147359_a", packetClass));
+                GET_STACK_IN_SLOT = lookup.unreflect(inventoryClass.getMethod("func_70301_a", int.class));
+                COPY_STACK = lookup.unreflect(stackClass.getMethod("func_77946_l"));
+                TO_COMPONENT = lookup.unreflect(textsClass.getMethod("toComponent", Text.class));
+                FROM_SNAPSHOT_TO_NATIVE = lookup.unreflect(
+                        stackUtilClass.getMethod("fromSnapshotToNative", ItemStackSnapshot.class));
+                NON_NULL_LIST_WITH_SIZE = lookup.unreflect(
+                        nonNullListClass.getMethod("func_191197_a", int.class, Object.class));
+                CLICK_WINDOW_GET_WINDOW_ID = lookup.unreflect(CLICK_WINDOW_CLASS.getMethod("func_149548_c"));
+                CLICK_WINDOW_GET_SLOT_ID = lookup.unreflect(CLICK_WINDOW_CLASS.getMethod("func_149544_d"));
+                CLICK_WINDOW_GET_USED_BUTTON = lookup.unreflect(CLICK_WINDOW_CLASS.getMethod("func_149543_e"));
+                CLICK_WINDOW_GET_CLICK_TYPE = lookup.unreflect(CLICK_WINDOW_CLASS.getMethod("func_186993_f"));
+
+                OPEN_WINDOW = S_OPEN_WINDOW_CLASS.getConstructor(int.class, String.class, componentClass, int.class);
+                CLOSE_WINDOW = S_CLOSE_WINDOW_CLASS.getConstructor(int.class);
+                SET_SLOT = setSlotClass.getConstructor(int.class, int.class, stackClass);
+                WINDOW_ITEMS = windowItemsClass.getConstructor(int.class, nonNullListClass);
+
+                EMPTY_STACK = getField(stackClass, "field_190927_a").get(null);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new UnsupportedOperationException("Packet windows are not supported", e);
+            }
+        }
+
+        private static Field getField(Class<?> clazz, String name) throws NoSuchFieldException
+        {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+    }
+}